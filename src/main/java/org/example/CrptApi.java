@@ -1,36 +1,134 @@
 package org.example;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
 import okhttp3.*;
+import okio.BufferedSink;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.VarHandle;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.time.Duration;
-import java.time.temporal.ChronoUnit;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.ToIntFunction;
+import java.util.zip.CRC32;
 
 /**
  * Represents a client for interacting with CRPT API.
  */
 @Slf4j
-public class CrptApi {
+public class CrptApi implements AutoCloseable {
+
+    private static final long EPOCH_NANOS_OFFSET =
+            TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis()) - System.nanoTime();
+    private static final int BULK_MAX_PENDING = 256;
+    private static final MethodHandle NEW_VIRTUAL_THREAD_EXECUTOR = findVirtualThreadExecutor();
+    private static final Duration DRAIN_TIMEOUT = Duration.ofSeconds(30);
+    private static final long CANCEL_GRACE_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final String CANCELLED_MESSAGE = "CrptApi shut down before the document was sent";
+    private static final MediaType JSON = MediaType.get("application/json; charset=utf-8");
+    private static final int STREAMING_MIN_PRODUCTS = 1_000;
 
     private final OkHttpClient client;
-    private final Semaphore semaphore;
-    private long lastRequestTime;
-    private static final Lock lock = new ReentrantLock();
-    private final ScheduledExecutorService scheduler;
+    private final Function<Document, RateLimiter> rateLimiters;
+    private final ToIntFunction<Document> documentCost;
+    private final RateLimiter byteRateLimiter;
+    private final ConcurrencyLimiter concurrencyLimiter;
+    private final DocumentSerializer documentSerializer;
     private final String baseUrl;
+    private final AtomicInteger activeCalls = new AtomicInteger();
+    private final Set<Thread> waitingThreads = ConcurrentHashMap.newKeySet();
+    private final Set<CompletableFuture<CreateResult>> waitingFutures = ConcurrentHashMap.newKeySet();
+    private final Lock shutdownLock = new ReentrantLock();
+    private final Condition idle = shutdownLock.newCondition();
+    private volatile boolean closed;
+    private volatile boolean cancelling;
+    private volatile ScheduledExecutorService scheduler;
+    private boolean schedulerStopped;
 
     /**
      * Main constructor for CrptApi.
@@ -39,60 +137,606 @@ public class CrptApi {
      * @param requestLimit The limit for the number of requests.
      */
     CrptApi(TimeUnit timeUnit, int requestLimit) {
-        this(new OkHttpClient(), Executors.newScheduledThreadPool(1), new Semaphore(requestLimit),
-                timeUnit, requestLimit, "https://ismp.crpt.ru");
+        this(new TokenBucketRateLimiter(timeUnit, requestLimit));
+    }
+
+    /**
+     * Constructor for CrptApi with a custom rate limiter, e.g. {@link SlidingWindowRateLimiter}.
+     *
+     * @param rateLimiter The rate limiter for requests.
+     */
+    CrptApi(RateLimiter rateLimiter) {
+        this(defaultClient(), rateLimiter, "https://ismp.crpt.ru");
+    }
+
+    /**
+     * Constructor for CrptApi with an independent rate limiter per tenant.
+     *
+     * @param registry  The registry holding a rate limiter per tenant key.
+     * @param tenantKey Extracts the tenant key from a document, e.g. {@code Document::getParticipantInn}.
+     */
+    CrptApi(RateLimiterRegistry registry, Function<Document, String> tenantKey) {
+        this(defaultClient(), registry, tenantKey, "https://ismp.crpt.ru");
+    }
+
+    /**
+     * Constructor for CrptApi that shares the rate between classes of callers by weighted fair queuing.
+     *
+     * @param fairQueue The fair queue in front of the rate limiter.
+     * @param flowKey   Extracts the class of a document, e.g. {@code Document::getDocType}.
+     */
+    CrptApi(WeightedFairQueue fairQueue, Function<Document, String> flowKey) {
+        this(defaultClient(), document -> fairQueue.forFlow(flowKey.apply(document)), document -> 1,
+                RateLimiter.UNLIMITED, ConcurrencyLimiter.UNLIMITED, DocumentSerializer.DEFAULT,
+                "https://ismp.crpt.ru");
+    }
+
+    /**
+     * Constructor for CrptApi that charges each document by its cost and limits the request body bandwidth.
+     *
+     * @param rateLimiter     The rate limiter for requests.
+     * @param documentCost    The number of permits a document takes, e.g. {@link #productCount(Document)}. A
+     *                        document costing less than 1, or more than the rate limiter grants at once, fails
+     *                        with an IOException before it waits.
+     * @param byteRateLimiter The rate limiter for request bodies, one permit per started KiB.
+     */
+    CrptApi(RateLimiter rateLimiter, ToIntFunction<Document> documentCost, RateLimiter byteRateLimiter) {
+        this(defaultClient(), rateLimiter, documentCost, byteRateLimiter, "https://ismp.crpt.ru");
+    }
+
+    /**
+     * Constructor for CrptApi that also limits the number of requests in flight, e.g. with
+     * {@link VegasConcurrencyLimiter}, so that a slow server makes callers queue locally.
+     *
+     * @param rateLimiter        The rate limiter for requests.
+     * @param concurrencyLimiter The limiter for requests in flight.
+     */
+    CrptApi(RateLimiter rateLimiter, ConcurrencyLimiter concurrencyLimiter) {
+        this(defaultClient(), document -> rateLimiter, document -> 1, RateLimiter.UNLIMITED, concurrencyLimiter,
+                DocumentSerializer.DEFAULT, "https://ismp.crpt.ru");
+    }
+
+    /**
+     * Constructor for CrptApi with its own JSON serialization settings. Documents are then serialized by Jackson
+     * instead of {@link DocumentJsonWriter}.
+     *
+     * @param rateLimiter    The rate limiter for requests.
+     * @param documentWriter Writes documents, e.g. {@code documentWriter(mapper).with(feature)}; it is
+     *                       specialized for {@link Document} if it is not already.
+     */
+    CrptApi(RateLimiter rateLimiter, ObjectWriter documentWriter) {
+        this(rateLimiter, DocumentSerializer.of(documentWriter));
+    }
+
+    /**
+     * Constructor for CrptApi with its own serializer, e.g. {@link ParallelDocumentSerializer} for documents with
+     * hundreds of thousands of products.
+     *
+     * @param rateLimiter        The rate limiter for requests.
+     * @param documentSerializer Turns documents into JSON.
+     */
+    CrptApi(RateLimiter rateLimiter, DocumentSerializer documentSerializer) {
+        this(defaultClient(), document -> rateLimiter, document -> 1, RateLimiter.UNLIMITED,
+                ConcurrencyLimiter.UNLIMITED, documentSerializer, "https://ismp.crpt.ru");
     }
 
     /**
      * Constructor for tests CrptApi.
      */
-    CrptApi(OkHttpClient client, ScheduledExecutorService scheduler, Semaphore semaphore,
-            TimeUnit timeUnit, int requestLimit, String baseUrl) {
-        if (requestLimit <= 0) {
-            throw new IllegalArgumentException("Request limit must be positive");
-        }
+    CrptApi(OkHttpClient client, RateLimiter rateLimiter, String baseUrl) {
+        this(client, rateLimiter, document -> 1, RateLimiter.UNLIMITED, baseUrl);
+    }
+
+    /**
+     * Constructor for tests CrptApi with document costs and a bandwidth limit.
+     */
+    CrptApi(OkHttpClient client, RateLimiter rateLimiter, ToIntFunction<Document> documentCost,
+            RateLimiter byteRateLimiter, String baseUrl) {
+        this(client, document -> rateLimiter, documentCost, byteRateLimiter, ConcurrencyLimiter.UNLIMITED,
+                DocumentSerializer.DEFAULT, baseUrl);
+    }
+
+    /**
+     * Constructor for tests CrptApi with a limit on requests in flight.
+     */
+    CrptApi(OkHttpClient client, RateLimiter rateLimiter, ConcurrencyLimiter concurrencyLimiter, String baseUrl) {
+        this(client, document -> rateLimiter, document -> 1, RateLimiter.UNLIMITED, concurrencyLimiter,
+                DocumentSerializer.DEFAULT, baseUrl);
+    }
+
+    /**
+     * Constructor for tests CrptApi with a rate limiter per tenant.
+     */
+    CrptApi(OkHttpClient client, RateLimiterRegistry registry, Function<Document, String> tenantKey,
+            String baseUrl) {
+        this(client, document -> registry.forKey(tenantKey.apply(document)), document -> 1, RateLimiter.UNLIMITED,
+                ConcurrencyLimiter.UNLIMITED, DocumentSerializer.DEFAULT, baseUrl);
+    }
 
+    private CrptApi(OkHttpClient client, Function<Document, RateLimiter> rateLimiters,
+                    ToIntFunction<Document> documentCost, RateLimiter byteRateLimiter,
+                    ConcurrencyLimiter concurrencyLimiter, DocumentSerializer documentSerializer, String baseUrl) {
         this.client = client;
-        this.scheduler = scheduler;
-        this.semaphore = semaphore;
+        this.rateLimiters = rateLimiters;
+        this.documentCost = documentCost;
+        this.byteRateLimiter = byteRateLimiter;
+        this.concurrencyLimiter = concurrencyLimiter;
+        this.documentSerializer = documentSerializer;
         this.baseUrl = baseUrl;
+    }
 
-        long timeInMilliseconds = Duration.of(timeUnit.toMillis(1), ChronoUnit.MILLIS).getSeconds();
-        long interval = (long) Math.ceil((double) requestLimit / timeInMilliseconds);
+    /**
+     * Creates a document with the given Product body and signature.
+     *
+     * @param document  The object Document class of the document.
+     * @param signature The signature of the document.
+     * @throws IOException If an I/O error occurs, or the document's cost or size is outside what the rate
+     *                     limiters can grant.
+     */
+    public void createDocument(Document document, String signature)
+            throws IOException {
+        createDocumentForResult(document, signature);
+    }
 
-        log.debug("Interval set to {} milliseconds", interval);
+    private CreateResult createDocumentForResult(Document document, String signature) throws IOException {
+        enter();
+        try {
+            RateLimiter rateLimiter = rateLimiters.apply(document);
+            int cost = costOf(document, rateLimiter);
+            Request request = buildRequest(document, signature);
+            int kibibytes = kibibytes(document, request);
 
-        scheduler.scheduleAtFixedRate(() -> {
-            lock.lock();
-            try {
-                long currentTime = System.currentTimeMillis();
-                if (currentTime - lastRequestTime >= interval) {
-                    lastRequestTime = currentTime;
-                    semaphore.release(requestLimit);
-                }
-            } finally {
-                lock.unlock();
+            admit(rateLimiter, cost, kibibytes, Long.MAX_VALUE, System.nanoTime());
+            return execute(request, rateLimiter);
+        } finally {
+            exit();
+        }
+    }
+
+    /**
+     * Creates a document unless the rate limit would hold it back longer than maxWait. If the limiter
+     * predicts a longer wait, the call returns at once without queuing.
+     *
+     * @param document  The object Document class of the document.
+     * @param signature The signature of the document.
+     * @param maxWait   The longest acceptable wait for a permit.
+     * @return true if the document was sent, false if it was rejected because of the wait.
+     * @throws IOException If an I/O error occurs.
+     */
+    public boolean tryCreateDocument(Document document, String signature, Duration maxWait)
+            throws IOException {
+        long startedAt = System.nanoTime();
+        long maxWaitNanos = toNanos(maxWait);
+        enter();
+        try {
+            RateLimiter rateLimiter = rateLimiters.apply(document);
+            int cost = costOf(document, rateLimiter);
+            if (maxWaitNanos < 0 || rateLimiter.waitNanos(cost) > maxWaitNanos) {
+                log.debug("Rejected document {}: the wait exceeds {}", document.getDocId(), maxWait);
+                return false;
+            }
+
+            Request request = buildRequest(document, signature);
+            int kibibytes = kibibytes(document, request);
+            if (byteRateLimiter.waitNanos(kibibytes) > maxWaitNanos
+                    || !admit(rateLimiter, cost, kibibytes, maxWaitNanos, startedAt)) {
+                log.debug("Rejected document {}: the wait exceeds {}", document.getDocId(), maxWait);
+                return false;
             }
-        }, 0, interval, TimeUnit.MILLISECONDS);
+
+            execute(request, rateLimiter);
+            return true;
+        } finally {
+            exit();
+        }
     }
 
     /**
-     * Creates a document with the given Product body and signature.
+     * Creates a document unless the rate limit would hold it back past the deadline.
      *
      * @param document  The object Document class of the document.
      * @param signature The signature of the document.
+     * @param deadline  The latest acceptable time to get a permit.
+     * @return true if the document was sent, false if it was rejected because of the deadline.
      * @throws IOException If an I/O error occurs.
+     * @see #tryCreateDocument(Document, String, Duration)
      */
-    public void createDocument(Document document, String signature)
+    public boolean tryCreateDocument(Document document, String signature, Instant deadline)
+            throws IOException {
+        return tryCreateDocument(document, signature, Duration.between(Instant.now(), deadline));
+    }
+
+    /**
+     * Creates a document without blocking the calling thread. Waits for rate limits and slots are scheduled
+     * on a timer and the request is sent with OkHttp's asynchronous call, so a few threads can drive the
+     * whole allowed rate.
+     *
+     * @param document  The object Document class of the document.
+     * @param signature The signature of the document.
+     * @return The result; fails with an IOException if the request fails or the server rejects it, and with the
+     * RuntimeException if the request cannot be built, e.g. for a null signature.
+     */
+    public CompletableFuture<CreateResult> createDocumentAsync(Document document, String signature) {
+        return createDocumentAsync(document, signature, () -> {
+        });
+    }
+
+    /**
+     * Creates a document asynchronously and runs admitted once it got its permits and slot, right before sending.
+     */
+    private CompletableFuture<CreateResult> createDocumentAsync(Document document, String signature,
+                                                                Runnable admitted) {
+        try {
+            enter();
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        CompletableFuture<CreateResult> result = new CompletableFuture<>();
+        result.whenComplete((created, e) -> {
+            waitingFutures.remove(result);
+            exit();
+        });
+
+        RateLimiter rateLimiter;
+        int cost;
+        Request request;
+        int kibibytes;
+        try {
+            rateLimiter = rateLimiters.apply(document);
+            cost = costOf(document, rateLimiter);
+            request = buildRequest(document, signature);
+            kibibytes = kibibytes(document, request);
+        } catch (IOException | RuntimeException e) {
+            // Completing the result also counts the call out, so a shutdown does not wait for it.
+            result.completeExceptionally(e);
+            return result;
+        }
+
+        waitingFutures.add(result);
+        if (cancelling && waitingFutures.remove(result)) {
+            result.completeExceptionally(new IOException(CANCELLED_MESSAGE));
+            return result;
+        }
+        concurrencyLimiter.acquireAsync()
+                .thenCompose(slot -> rateLimiter.acquireAsync(cost, scheduler())
+                        .thenCompose(permits -> byteRateLimiter.acquireAsync(kibibytes, scheduler()))
+                        .whenComplete((permits, e) -> {
+                            if (e != null) {
+                                concurrencyLimiter.release(-1, false);
+                            }
+                        }))
+                .thenCompose(permits -> {
+                    if (!waitingFutures.remove(result)) {
+                        // Cancelled, by the caller or by a shutdown, while waiting.
+                        concurrencyLimiter.release(-1, false);
+                        return result;
+                    }
+                    admitted.run();
+                    CompletableFuture<CreateResult> sent = send(request, rateLimiter);
+                    result.whenComplete((created, e) -> sent.cancel(false));
+                    return sent;
+                })
+                .whenComplete((created, e) -> {
+                    if (e != null) {
+                        result.completeExceptionally(unwrap(e));
+                    } else {
+                        result.complete(created);
+                    }
+                });
+        return result;
+    }
+
+    /**
+     * Creates many documents, e.g. a whole job, without failing the batch when some of them fail. Documents are
+     * signed and serialized in parallel while earlier ones wait for permits or are being sent; sending is paced
+     * by the limiters as in {@link #createDocumentAsync(Document, String)}. At most 256 documents are in
+     * progress at once, so the input may be a lazy, arbitrarily long iterable.
+     *
+     * @param documents The documents.
+     * @param signer    Signs a document.
+     * @return A result per document, in the order of the input.
+     * @throws InterruptedException If the thread is interrupted; documents already submitted are still sent.
+     */
+    public List<SubmissionResult> createDocuments(Iterable<Document> documents, Function<Document, String> signer)
+            throws InterruptedException {
+        ConcurrentHashMap<Integer, SubmissionResult> results = new ConcurrentHashMap<>();
+        int count = createAll(documents, signer, results::put);
+
+        List<SubmissionResult> ordered = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ordered.add(results.get(i));
+        }
+        return ordered;
+    }
+
+    /**
+     * Creates many documents like {@link #createDocuments(Iterable, Function)}, but streams each result to the
+     * consumer as soon as it is known, in completion order, instead of collecting them.
+     *
+     * @param documents The documents.
+     * @param signer    Signs a document.
+     * @param onResult  Receives the results, one at a time, on the threads completing the requests.
+     * @throws InterruptedException If the thread is interrupted; documents already submitted are still sent.
+     */
+    public void createDocuments(Iterable<Document> documents, Function<Document, String> signer,
+                                Consumer<SubmissionResult> onResult) throws InterruptedException {
+        Lock resultLock = new ReentrantLock();
+        createAll(documents, signer, (index, result) -> {
+            resultLock.lock();
+            try {
+                onResult.accept(result);
+            } finally {
+                resultLock.unlock();
+            }
+        });
+    }
+
+    /**
+     * Submits the documents and blocks until each has a result.
+     *
+     * @return The number of documents.
+     */
+    private int createAll(Iterable<Document> documents, Function<Document, String> signer,
+                          BiConsumer<Integer, SubmissionResult> sink) throws InterruptedException {
+        Semaphore window = new Semaphore(BULK_MAX_PENDING);
+        int count = 0;
+        for (Document document : documents) {
+            window.acquire();
+            int index = count++;
+            CompletableFuture.supplyAsync(() -> signer.apply(document))
+                    .thenCompose(signature -> createDocumentAsync(document, signature)
+                            .handle((created, e) -> new SubmissionResult(new SignedDocument(document, signature),
+                                    created, unwrap(e))))
+                    .exceptionally(e -> new SubmissionResult(new SignedDocument(document, null), null, unwrap(e)))
+                    .thenAccept(result -> {
+                        try {
+                            sink.accept(index, result);
+                        } catch (RuntimeException e) {
+                            log.warn("Result of document {} was not delivered", document.getDocId(), e);
+                        } finally {
+                            window.release();
+                        }
+                    });
+        }
+        window.acquire(BULK_MAX_PENDING);
+        return count;
+    }
+
+    /**
+     * Creates many documents like {@link #createDocuments(Iterable, Function)}, but runs each one as a blocking
+     * {@link #createDocument(Document, String)} call on the executor. With {@link #newVirtualThreadExecutor()}
+     * every document gets its own virtual thread, and 100k concurrent submissions need just a few carrier
+     * threads: the limiters wait on locks, conditions and parking, never on monitors, so a waiting submission
+     * does not pin its carrier. (OkHttp 4 itself may pin briefly while writing HTTP/2 frames.) All documents
+     * are handed to the executor at once; it decides how many run together.
+     *
+     * @param documents The documents.
+     * @param signer    Signs a document.
+     * @param executor  Runs the submissions; it is not shut down.
+     * @return A result per document, in the order of the input.
+     * @throws InterruptedException If the thread is interrupted while waiting for the results.
+     */
+    public List<SubmissionResult> createDocuments(Iterable<Document> documents, Function<Document, String> signer,
+                                                  ExecutorService executor) throws InterruptedException {
+        List<Future<SubmissionResult>> submissions = new ArrayList<>();
+        for (Document document : documents) {
+            submissions.add(executor.submit(() -> {
+                String signature = null;
+                try {
+                    signature = signer.apply(document);
+                    return new SubmissionResult(new SignedDocument(document, signature),
+                            createDocumentForResult(document, signature), null);
+                } catch (IOException | RuntimeException e) {
+                    return new SubmissionResult(new SignedDocument(document, signature), null, e);
+                }
+            }));
+        }
+
+        List<SubmissionResult> results = new ArrayList<>(submissions.size());
+        for (Future<SubmissionResult> submission : submissions) {
+            try {
+                results.add(submission.get());
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Submission failed unexpectedly", e.getCause());
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Returns an executor that starts a virtual thread per task, for
+     * {@link #createDocuments(Iterable, Function, ExecutorService)}. The project targets Java 17, so the
+     * executor is looked up reflectively.
+     *
+     * @return The executor, or empty before Java 21.
+     */
+    static Optional<ExecutorService> newVirtualThreadExecutor() {
+        if (NEW_VIRTUAL_THREAD_EXECUTOR == null) {
+            return Optional.empty();
+        }
+        try {
+            return Optional.of((ExecutorService) NEW_VIRTUAL_THREAD_EXECUTOR.invokeExact());
+        } catch (UnsupportedOperationException e) {
+            // Java 19 and 20 have the method as a preview feature.
+            return Optional.empty();
+        } catch (Throwable e) {
+            throw new IllegalStateException("Cannot create a virtual thread executor", e);
+        }
+    }
+
+    private static MethodHandle findVirtualThreadExecutor() {
+        try {
+            return MethodHandles.publicLookup().findStatic(Executors.class, "newVirtualThreadPerTaskExecutor",
+                    MethodType.methodType(ExecutorService.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns a processor that creates the documents of a reactive stream, see {@link DocumentProcessor}.
+     *
+     * @param maxPending The most documents held at once, counting those waiting, being sent, and whose
+     *                   results are not yet requested downstream.
+     * @return The processor; it takes one subscription and one subscriber.
+     */
+    public DocumentProcessor documentProcessor(int maxPending) {
+        return new DocumentProcessor(maxPending);
+    }
+
+    /**
+     * Counts a call in for {@link #shutdown(Duration)}, unless the client is shut down.
+     */
+    private void enter() throws IOException {
+        activeCalls.incrementAndGet();
+        if (closed) {
+            exit();
+            throw new IOException("CrptApi is shut down");
+        }
+    }
+
+    private void exit() {
+        if (activeCalls.decrementAndGet() == 0 && closed) {
+            shutdownLock.lock();
+            try {
+                idle.signalAll();
+            } finally {
+                shutdownLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Takes a slot, then the permits of a document, waiting at most maxWaitNanos since startedAt. A shutdown
+     * that gives up on waiting callers interrupts the wait.
+     *
+     * @return true if admitted, false if the wait would exceed maxWaitNanos.
+     * @throws IOException If the wait was interrupted or cancelled by a shutdown.
+     */
+    private boolean admit(RateLimiter rateLimiter, int cost, int kibibytes, long maxWaitNanos, long startedAt)
             throws IOException {
-        ObjectMapper objectMapper = new ObjectMapper();
+        Thread thread = Thread.currentThread();
+        waitingThreads.add(thread);
+        if (cancelling && stopWaiting(thread)) {
+            throw new IOException(CANCELLED_MESSAGE);
+        }
+
+        boolean admitted;
+        try {
+            admitted = takeSlotAndPermits(rateLimiter, cost, kibibytes, maxWaitNanos, startedAt);
+        } catch (InterruptedException e) {
+            if (stopWaiting(thread)) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a permit");
+            }
+            throw new IOException(CANCELLED_MESSAGE);
+        } catch (RuntimeException e) {
+            stopWaiting(thread);
+            throw e;
+        }
+
+        if (!stopWaiting(thread)) {
+            if (admitted) {
+                concurrencyLimiter.release(-1, false);
+            }
+            throw new IOException(CANCELLED_MESSAGE);
+        }
+        return admitted;
+    }
+
+    private boolean takeSlotAndPermits(RateLimiter rateLimiter, int cost, int kibibytes, long maxWaitNanos,
+                                       long startedAt) throws InterruptedException {
+        boolean unbounded = maxWaitNanos == Long.MAX_VALUE;
+        // The slot is taken first: permits granted while waiting for a slot would be spent in a burst.
+        if (unbounded) {
+            concurrencyLimiter.acquire();
+        } else if (!concurrencyLimiter.tryAcquire(maxWaitNanos - (System.nanoTime() - startedAt))) {
+            return false;
+        }
+
+        boolean admitted = false;
+        try {
+            if (unbounded) {
+                rateLimiter.acquire(cost);
+                byteRateLimiter.acquire(kibibytes);
+                admitted = true;
+            } else {
+                admitted = rateLimiter.tryAcquire(cost, maxWaitNanos - (System.nanoTime() - startedAt))
+                        && byteRateLimiter.tryAcquire(kibibytes, maxWaitNanos - (System.nanoTime() - startedAt));
+            }
+        } finally {
+            if (!admitted) {
+                concurrencyLimiter.release(-1, false);
+            }
+        }
+        return admitted;
+    }
+
+    /**
+     * Unregisters a waiting thread.
+     *
+     * @return false if a shutdown cancelled the wait; its interrupt is cleared then.
+     */
+    private boolean stopWaiting(Thread thread) {
+        shutdownLock.lock();
+        try {
+            if (waitingThreads.remove(thread)) {
+                return true;
+            }
+            Thread.interrupted();
+            return false;
+        } finally {
+            shutdownLock.unlock();
+        }
+    }
+
+    /**
+     * Document cost function charging one permit per product, at least one per document.
+     *
+     * @param document The document.
+     * @return The number of permits the document takes.
+     */
+    static int productCount(Document document) {
+        return document.getProducts() == null ? 1 : Math.max(document.getProducts().size(), 1);
+    }
+
+    /**
+     * Returns a writer specialized for documents, so that the bean serializers are looked up once and not on
+     * every call. Writers are immutable and thread-safe; configure one with {@code with(...)} and
+     * {@code without(...)}.
+     *
+     * @param mapper The mapper supplying the base configuration.
+     * @return The writer.
+     */
+    static ObjectWriter documentWriter(ObjectMapper mapper) {
+        return mapper.writerFor(Document.class);
+    }
 
-        String documentJson = objectMapper.writeValueAsString(document);
-        log.debug("documentJson is: {}", documentJson);
+    /**
+     * Serializes a document as it is sent.
+     *
+     * @param document The document.
+     * @return The JSON in UTF-8.
+     * @throws IOException If the document cannot be serialized.
+     */
+    byte[] toJson(Document document) throws IOException {
+        return documentSerializer.toBytes(document);
+    }
 
-        MediaType jsonMediaType = MediaType.get("application/json; charset=utf-8");
+    private Request buildRequest(Document document, String signature) throws IOException {
+        RequestBody body;
+        if (document.getProducts() != null && document.getProducts().size() >= STREAMING_MIN_PRODUCTS) {
+            log.debug("Streaming document {} with {} products", document.getDocId(), document.getProducts().size());
+            // Measuring the length takes a full serialization pass, so it is done only for a byte budget.
+            body = new DocumentRequestBody(documentSerializer, document, byteRateLimiter != RateLimiter.UNLIMITED);
+        } else {
+            byte[] documentJson = toJson(document);
+            if (log.isDebugEnabled()) {
+                log.debug("documentJson is: {}", new String(documentJson, StandardCharsets.UTF_8));
+            }
 
-        RequestBody body = RequestBody.create(jsonMediaType, documentJson);
+            body = RequestBody.create(JSON, documentJson);
+        }
 
         String fullUrl;
         try {
@@ -101,34 +745,4092 @@ public class CrptApi {
             throw new RuntimeException("Invalid URL syntax", e); // Перехват и повторное выбрасывание RuntimeException
         }
 
-        Request request = new Request.Builder()
+        return new Request.Builder()
                 .url(fullUrl)
                 .post(body)
                 .addHeader("Content-Type", "application/json")
                 .addHeader("Signature", signature) //
                 .build();
+    }
 
-        try {
-            semaphore.acquire();
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
+    /**
+     * Returns the permits a document takes from its rate limiter.
+     *
+     * @throws IOException If the cost is below 1, or more than the rate limiter grants at once.
+     */
+    private int costOf(Document document, RateLimiter rateLimiter) throws IOException {
+        int cost = documentCost.applyAsInt(document);
+        if (cost < 1) {
+            throw new IOException("Document " + document.getDocId() + " costs " + cost
+                    + " permits, at least 1 is required");
+        }
+        if (cost > rateLimiter.maxPermits()) {
+            throw new IOException("Document " + document.getDocId() + " costs " + cost
+                    + " permits, the rate limiter grants at most " + rateLimiter.maxPermits());
+        }
+        return cost;
+    }
+
+    /**
+     * Returns the permits a request body takes from the byte rate limiter.
+     *
+     * @throws IOException If the body cannot be measured, or it is larger than the byte rate limiter grants at once.
+     */
+    private int kibibytes(Document document, Request request) throws IOException {
+        long length = request.body() == null ? 0 : request.body().contentLength();
+        int kibibytes = (int) Math.min((Math.max(length, 0) + 1023) / 1024, Integer.MAX_VALUE);
+        if (kibibytes > byteRateLimiter.maxPermits()) {
+            throw new IOException("Document " + document.getDocId() + " has " + kibibytes
+                    + " KiB, the byte rate limiter grants at most " + byteRateLimiter.maxPermits());
         }
+        return kibibytes;
+    }
 
+    /**
+     * Sends the request in a slot already taken from the concurrency limiter and gives the slot back.
+     */
+    private CreateResult execute(Request request, RateLimiter rateLimiter) throws IOException {
+        long startedAt = System.nanoTime();
+        boolean dropped = true;
         try (Response response = client.newCall(request).execute()) {
+            dropped = response.code() == 429 || response.code() == 503;
+            rateLimiter.onResponse(response.code(), retryAfterNanos(response));
             if (!response.isSuccessful()) {
                 throw new IOException("Unexpected code " + response.code());
             }
+            return new CreateResult(response.code(), response.body() == null ? "" : response.body().string());
         } finally {
-            semaphore.release(); //
+            concurrencyLimiter.release(System.nanoTime() - startedAt, dropped);
         }
     }
 
     /**
-     * Shuts down the scheduler.
+     * Asynchronous counterpart of {@link #execute(Request, RateLimiter)}.
      */
-    public void shutdown() {
-        scheduler.shutdown();
-        log.debug("Scheduler shut down.");
+    private CompletableFuture<CreateResult> send(Request request, RateLimiter rateLimiter) {
+        CompletableFuture<CreateResult> result = new CompletableFuture<>();
+        long startedAt = System.nanoTime();
+        Call call = client.newCall(request);
+        call.enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                concurrencyLimiter.release(System.nanoTime() - startedAt, true);
+                result.completeExceptionally(e);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                boolean dropped = response.code() == 429 || response.code() == 503;
+                CreateResult created = null;
+                IOException failure = null;
+                try (response) {
+                    rateLimiter.onResponse(response.code(), retryAfterNanos(response));
+                    if (!response.isSuccessful()) {
+                        failure = new IOException("Unexpected code " + response.code());
+                    } else {
+                        created = new CreateResult(response.code(),
+                                response.body() == null ? "" : response.body().string());
+                    }
+                } catch (IOException e) {
+                    dropped = true;
+                    failure = e;
+                } finally {
+                    concurrencyLimiter.release(System.nanoTime() - startedAt, dropped);
+                }
+
+                if (failure != null) {
+                    result.completeExceptionally(failure);
+                } else {
+                    result.complete(created);
+                }
+            }
+        });
+        result.whenComplete((created, e) -> {
+            if (result.isCancelled()) {
+                call.cancel();
+            }
+        });
+        return result;
+    }
+
+    private static Throwable unwrap(Throwable e) {
+        return e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+    }
+
+    private static OkHttpClient defaultClient() {
+        Dispatcher dispatcher = new Dispatcher();
+        // Requests in flight are bounded by the concurrency limiter, not by OkHttp's default of 5 per host.
+        dispatcher.setMaxRequestsPerHost(dispatcher.getMaxRequests());
+        return new OkHttpClient.Builder().dispatcher(dispatcher).build();
+    }
+
+    /**
+     * Returns the timer for asynchronous waits. It is created by the first asynchronous call, so a client that
+     * only blocks never starts its thread.
+     */
+    private ScheduledExecutorService scheduler() {
+        ScheduledExecutorService current = scheduler;
+        if (current != null) {
+            return current;
+        }
+        shutdownLock.lock();
+        try {
+            if (scheduler == null) {
+                scheduler = Executors.newSingleThreadScheduledExecutor(daemonThreads("crpt-api-scheduler"));
+                if (schedulerStopped) {
+                    // A call that outlived the drain timeout is being cancelled; it must not leave a thread behind.
+                    scheduler.shutdown();
+                }
+            }
+            return scheduler;
+        } finally {
+            shutdownLock.unlock();
+        }
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private static long toNanos(Duration duration) {
+        try {
+            return duration.toNanos();
+        } catch (ArithmeticException e) {
+            return duration.isNegative() ? Long.MIN_VALUE : Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Reads the Retry-After header, given either in seconds or as an HTTP date.
+     *
+     * @param response The response.
+     * @return The delay in nanoseconds, 0 if the header is missing or invalid.
+     */
+    static long retryAfterNanos(Response response) {
+        String retryAfter = response.header("Retry-After");
+        if (retryAfter == null) {
+            return 0;
+        }
+
+        try {
+            return TimeUnit.SECONDS.toNanos(Math.max(Long.parseLong(retryAfter.trim()), 0));
+        } catch (NumberFormatException e) {
+            try {
+                ZonedDateTime date = ZonedDateTime.parse(retryAfter.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+                return Math.max(Duration.between(Instant.now(), date.toInstant()).toNanos(), 0);
+            } catch (DateTimeParseException | ArithmeticException ignored) {
+                log.debug("Ignoring invalid Retry-After header: {}", retryAfter);
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Shuts down the client like {@link #close()}.
+     */
+    public void shutdown() {
+        close();
+    }
+
+    /**
+     * Shuts down the client, giving documents already submitted 30 seconds to finish.
+     *
+     * @see #shutdown(Duration)
+     */
+    @Override
+    public void close() {
+        shutdown(DRAIN_TIMEOUT);
+    }
+
+    /**
+     * Shuts down the client gracefully. New documents are rejected with an IOException at once, while those
+     * already submitted get until the drain timeout to be sent and answered. After that, callers still waiting
+     * for permits or a slot fail with an IOException, requests in flight are cancelled, and OkHttp's threads,
+     * pooled connections and cache are released. Limiters, state persisters and config watchers handed to the
+     * client belong to the caller and stay open; timers already set still fire, so that a shared
+     * {@link WeightedFairQueue} gets its turn handed over.
+     *
+     * @param drainTimeout How long to let submitted documents finish.
+     * @return What was finished and what was dropped.
+     */
+    public ShutdownReport shutdown(Duration drainTimeout) {
+        closed = true;
+        int submitted = activeCalls.get();
+        int cancelledWaiting = 0;
+        int cancelledInFlight = 0;
+        if (!awaitIdle(toNanos(drainTimeout))) {
+            int remaining = activeCalls.get();
+            cancelledWaiting = cancelWaiting();
+            cancelledInFlight = Math.max(remaining - cancelledWaiting, 0);
+            client.dispatcher().cancelAll();
+            awaitIdle(CANCEL_GRACE_NANOS);
+        }
+
+        shutdownLock.lock();
+        try {
+            schedulerStopped = true;
+            if (scheduler != null) {
+                // Not shutdownNow: a dropped handover would leave a shared fair queue stuck with nobody holding
+                // its turn.
+                scheduler.shutdown();
+            }
+        } finally {
+            shutdownLock.unlock();
+        }
+        client.dispatcher().executorService().shutdown();
+        client.connectionPool().evictAll();
+        if (client.cache() != null) {
+            try {
+                client.cache().close();
+            } catch (IOException e) {
+                log.warn("Failed to close the HTTP cache", e);
+            }
+        }
+
+        ShutdownReport report = new ShutdownReport(Math.max(submitted - cancelledWaiting - cancelledInFlight, 0),
+                cancelledWaiting, cancelledInFlight);
+        if (cancelledWaiting > 0 || cancelledInFlight > 0) {
+            log.warn("CrptApi shut down: {}", report);
+        } else {
+            log.debug("CrptApi shut down: {}", report);
+        }
+        return report;
+    }
+
+    /**
+     * Waits until no call is in progress.
+     *
+     * @return false if calls are still in progress after the timeout.
+     */
+    private boolean awaitIdle(long timeoutNanos) {
+        shutdownLock.lock();
+        try {
+            long remaining = timeoutNanos;
+            while (activeCalls.get() > 0) {
+                if (remaining <= 0) {
+                    return false;
+                }
+                remaining = idle.awaitNanos(remaining);
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            shutdownLock.unlock();
+        }
+    }
+
+    /**
+     * Fails the callers waiting for permits or a slot.
+     *
+     * @return The number of callers.
+     */
+    private int cancelWaiting() {
+        cancelling = true;
+        int cancelled = 0;
+        shutdownLock.lock();
+        try {
+            for (Thread thread : waitingThreads) {
+                if (waitingThreads.remove(thread)) {
+                    thread.interrupt();
+                    cancelled++;
+                }
+            }
+        } finally {
+            shutdownLock.unlock();
+        }
+        for (CompletableFuture<CreateResult> waiting : waitingFutures) {
+            if (waitingFutures.remove(waiting)) {
+                waiting.completeExceptionally(new IOException(CANCELLED_MESSAGE));
+                cancelled++;
+            }
+        }
+        return cancelled;
+    }
+
+    /**
+     * Returns wall-clock nanoseconds since the epoch with the resolution of {@link System#nanoTime()}.
+     * Unlike nanoTime, it is comparable between processes on the same host (to within a millisecond).
+     */
+    static long epochNanos() {
+        return EPOCH_NANOS_OFFSET + System.nanoTime();
+    }
+
+    /**
+     * Limits the rate at which requests are sent to the CRPT API.
+     */
+    interface RateLimiter {
+
+        /**
+         * A limiter that never makes anyone wait.
+         */
+        RateLimiter UNLIMITED = new RateLimiter() {
+            @Override
+            public long reserve(int permits, long maxWaitNanos) {
+                return 0;
+            }
+
+            @Override
+            public long waitNanos(int permits) {
+                return 0;
+            }
+        };
+
+        /**
+         * Reserves permits and tells how long the caller has to wait before using them.
+         *
+         * @param permits      The number of permits to reserve.
+         * @param maxWaitNanos The longest acceptable wait in nanoseconds.
+         * @return The wait in nanoseconds, or -1 if it would exceed maxWaitNanos (nothing is reserved then).
+         */
+        long reserve(int permits, long maxWaitNanos);
+
+        /**
+         * Tells how long a caller would have to wait for the permits right now, without reserving them.
+         *
+         * @param permits The number of permits.
+         * @return The wait in nanoseconds, 0 if the permits are available.
+         */
+        long waitNanos(int permits);
+
+        /**
+         * Returns the most permits one call can take, e.g. the size of a window. Asking for more throws an
+         * IllegalArgumentException.
+         *
+         * @return The largest number of permits granted at once.
+         */
+        default int maxPermits() {
+            return Integer.MAX_VALUE;
+        }
+
+        /**
+         * Blocks until the permits are available. A limiter that reserves nothing even for an unbounded wait, e.g.
+         * when a lease ran out, is asked again once it expects permits.
+         *
+         * @param permits The number of permits to acquire.
+         * @throws InterruptedException If the thread is interrupted while waiting.
+         */
+        default void acquire(int permits) throws InterruptedException {
+            while (!tryAcquire(permits, Long.MAX_VALUE)) {
+                TimeUnit.NANOSECONDS.sleep(retryNanos(permits));
+            }
+        }
+
+        /**
+         * Waits for the permits unless that takes longer than maxWaitNanos; then returns at once.
+         *
+         * @param permits      The number of permits to acquire.
+         * @param maxWaitNanos The longest acceptable wait in nanoseconds.
+         * @return true if the permits were acquired.
+         * @throws InterruptedException If the thread is interrupted while waiting.
+         */
+        default boolean tryAcquire(int permits, long maxWaitNanos) throws InterruptedException {
+            long wait = reserve(permits, maxWaitNanos);
+            if (wait < 0) {
+                return false;
+            }
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            return true;
+        }
+
+        /**
+         * Acquires the permits only if they are available right now.
+         *
+         * @param permits The number of permits to acquire.
+         * @return true if the permits were acquired.
+         */
+        default boolean tryAcquire(int permits) {
+            return reserve(permits, 0) == 0;
+        }
+
+        /**
+         * Acquires the permits without blocking: the returned future completes when they may be used.
+         *
+         * @param permits   The number of permits to acquire.
+         * @param scheduler The timer completing the future once the wait is over.
+         * @return The future.
+         */
+        default CompletableFuture<Void> acquireAsync(int permits, ScheduledExecutorService scheduler) {
+            CompletableFuture<Void> acquired = new CompletableFuture<>();
+            reserveAsync(permits, scheduler, acquired);
+            return acquired;
+        }
+
+        private void reserveAsync(int permits, ScheduledExecutorService scheduler, CompletableFuture<Void> acquired) {
+            try {
+                long wait = reserve(permits, Long.MAX_VALUE);
+                if (wait == 0) {
+                    acquired.complete(null);
+                } else if (wait > 0) {
+                    scheduler.schedule(() -> acquired.complete(null), wait, TimeUnit.NANOSECONDS);
+                } else {
+                    // Nothing reserved, e.g. a lease ran out: ask again once the limiter expects permits.
+                    scheduler.schedule(() -> reserveAsync(permits, scheduler, acquired),
+                            retryNanos(permits), TimeUnit.NANOSECONDS);
+                }
+            } catch (RuntimeException e) {
+                acquired.completeExceptionally(e);
+            }
+        }
+
+        private long retryNanos(int permits) {
+            return Math.max(waitNanos(permits), TimeUnit.MILLISECONDS.toNanos(1));
+        }
+
+        /**
+         * Feeds the outcome of a request back to the limiter. Fixed-rate limiters ignore it.
+         *
+         * @param code            The HTTP status code.
+         * @param retryAfterNanos The Retry-After delay in nanoseconds, 0 if the server gave none.
+         */
+        default void onResponse(int code, long retryAfterNanos) {
+        }
+    }
+
+    /**
+     * State of a rate limiter that can be saved and restored, see {@link RateLimiterStatePersister}. Times are
+     * written relative to the moment of the snapshot and shifted by the time elapsed since on restore, so the
+     * saved state does not depend on the clock of the process that wrote it.
+     */
+    interface PersistentState {
+
+        /**
+         * Writes the configuration the state belongs to, then the state itself.
+         *
+         * @param out The output.
+         * @throws IOException If the state cannot be written.
+         */
+        void writeState(DataOutput out) throws IOException;
+
+        /**
+         * Replaces the state with a saved one. Nothing is changed if the saved configuration differs.
+         *
+         * @param in           The input.
+         * @param elapsedNanos How long ago the state was written.
+         * @throws IOException If the state cannot be read or was saved with another configuration.
+         */
+        void readState(DataInput in, long elapsedNanos) throws IOException;
+    }
+
+    private static void checkSavedConfig(DataInput in, long... config) throws IOException {
+        for (long value : config) {
+            if (in.readLong() != value) {
+                throw new IOException("Saved for another limiter configuration");
+            }
+        }
+    }
+
+    /**
+     * Lock-free token bucket holding up to requestLimit tokens and refilled at requestLimit per timeUnit.
+     * The whole state is one timestamp: the moment the bucket was (or, with outstanding reservations, will be)
+     * empty. Refill is computed lazily from the clock on every call, so no scheduler thread is needed.
+     */
+    static class TokenBucketRateLimiter implements RateLimiter, PersistentState {
+
+        private final long nanosPerPermit;
+        private final long capacityNanos;
+        private final LongSupplier clock;
+        private final AtomicLong emptyAt;
+
+        TokenBucketRateLimiter(TimeUnit timeUnit, int requestLimit) {
+            this(timeUnit, requestLimit, System::nanoTime);
+        }
+
+        /**
+         * Constructor for tests TokenBucketRateLimiter.
+         */
+        TokenBucketRateLimiter(TimeUnit timeUnit, int requestLimit, LongSupplier clock) {
+            if (requestLimit <= 0) {
+                throw new IllegalArgumentException("Request limit must be positive");
+            }
+
+            // Rounded up so that requestLimit permits never take less than one timeUnit to refill.
+            this.nanosPerPermit = (timeUnit.toNanos(1) + requestLimit - 1) / requestLimit;
+            this.capacityNanos = nanosPerPermit * requestLimit;
+            this.clock = clock;
+            this.emptyAt = new AtomicLong(clock.getAsLong() - capacityNanos);
+
+            log.debug("Token bucket: {} permits, one per {} ns", requestLimit, nanosPerPermit);
+        }
+
+        @Override
+        public long reserve(int permits, long maxWaitNanos) {
+            long cost = nanosPerPermit * permits;
+            while (true) {
+                long now = clock.getAsLong();
+                long current = emptyAt.get();
+                long next = Math.max(current, now - capacityNanos) + cost;
+                long wait = next - now;
+                if (wait > maxWaitNanos) {
+                    return -1;
+                }
+                if (emptyAt.compareAndSet(current, next)) {
+                    return Math.max(wait, 0);
+                }
+            }
+        }
+
+        @Override
+        public long waitNanos(int permits) {
+            long now = clock.getAsLong();
+            long next = Math.max(emptyAt.get(), now - capacityNanos) + nanosPerPermit * permits;
+            return Math.max(next - now, 0);
+        }
+
+        /**
+         * Puts unused permits back into the bucket; the bucket never holds more than requestLimit tokens.
+         *
+         * @param permits The number of permits to give back.
+         */
+        void refund(int permits) {
+            emptyAt.addAndGet(-nanosPerPermit * permits);
+        }
+
+        @Override
+        public void writeState(DataOutput out) throws IOException {
+            out.writeLong(nanosPerPermit);
+            out.writeLong(capacityNanos);
+            out.writeLong(emptyAt.get() - clock.getAsLong());
+        }
+
+        @Override
+        public void readState(DataInput in, long elapsedNanos) throws IOException {
+            checkSavedConfig(in, nanosPerPermit, capacityNanos);
+            emptyAt.set(clock.getAsLong() + in.readLong() - elapsedNanos);
+        }
+    }
+
+    /**
+     * Exact sliding window: at most requestLimit permits in any rolling timeUnit. The grant times of the
+     * last requestLimit permits are kept in a preallocated ring buffer; a new permit is granted no earlier
+     * than one timeUnit after the permit requestLimit positions before it. Grant times are non-decreasing,
+     * so the window never holds more than requestLimit permits, even across window boundaries.
+     */
+    static class SlidingWindowRateLimiter implements RateLimiter, PersistentState {
+
+        private final long windowNanos;
+        private final long[] grantTimes;
+        private final LongSupplier clock;
+        private final Lock lock = new ReentrantLock();
+        private int head;
+
+        SlidingWindowRateLimiter(TimeUnit timeUnit, int requestLimit) {
+            this(timeUnit, requestLimit, System::nanoTime);
+        }
+
+        /**
+         * Constructor for tests SlidingWindowRateLimiter.
+         */
+        SlidingWindowRateLimiter(TimeUnit timeUnit, int requestLimit, LongSupplier clock) {
+            if (requestLimit <= 0) {
+                throw new IllegalArgumentException("Request limit must be positive");
+            }
+
+            this.windowNanos = timeUnit.toNanos(1);
+            this.grantTimes = new long[requestLimit];
+            this.clock = clock;
+            Arrays.fill(grantTimes, clock.getAsLong() - windowNanos);
+        }
+
+        @Override
+        public long reserve(int permits, long maxWaitNanos) {
+            int limit = grantTimes.length;
+            if (permits > limit) {
+                throw new IllegalArgumentException("Cannot reserve " + permits + " permits, the window holds " + limit);
+            }
+
+            lock.lock();
+            try {
+                long now = clock.getAsLong();
+                long grantAt = grantTime(permits, now);
+                long wait = grantAt - now;
+                if (wait > maxWaitNanos) {
+                    return -1;
+                }
+                for (int i = 0; i < permits; i++) {
+                    grantTimes[head] = grantAt;
+                    head = (head + 1) % limit;
+                }
+                return wait;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Predicts the wait also for more permits than the window holds, e.g. behind a queue: every full window
+         * of permits ahead pushes the last ones back by one more timeUnit.
+         */
+        @Override
+        public long waitNanos(int permits) {
+            int limit = grantTimes.length;
+            int fullWindows = Math.max(permits - 1, 0) / limit;
+            lock.lock();
+            try {
+                long now = clock.getAsLong();
+                long grantAt = grantTime(Math.max(permits - fullWindows * limit, 1), now);
+                return grantAt - now + fullWindows * windowNanos;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public int maxPermits() {
+            return grantTimes.length;
+        }
+
+        private long grantTime(int permits, long now) {
+            int limit = grantTimes.length;
+            long last = grantTimes[(head + limit - 1) % limit];
+            long oldest = grantTimes[(head + permits - 1) % limit];
+            return Math.max(now, Math.max(last, oldest + windowNanos));
+        }
+
+        @Override
+        public void writeState(DataOutput out) throws IOException {
+            int limit = grantTimes.length;
+            long[] relative = new long[limit];
+            lock.lock();
+            try {
+                long now = clock.getAsLong();
+                for (int i = 0; i < limit; i++) {
+                    relative[i] = grantTimes[(head + i) % limit] - now;
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            out.writeLong(windowNanos);
+            out.writeLong(limit);
+            for (long time : relative) {
+                out.writeLong(time);
+            }
+        }
+
+        @Override
+        public void readState(DataInput in, long elapsedNanos) throws IOException {
+            checkSavedConfig(in, windowNanos, grantTimes.length);
+            long[] relative = new long[grantTimes.length];
+            for (int i = 0; i < relative.length; i++) {
+                relative[i] = in.readLong();
+            }
+
+            lock.lock();
+            try {
+                long now = clock.getAsLong();
+                for (int i = 0; i < relative.length; i++) {
+                    grantTimes[i] = now + relative[i] - elapsedNanos;
+                }
+                head = 0;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Generic cell rate algorithm: permits are spaced evenly, one per timeUnit / requestLimit, and up to
+     * burst permits may be taken back to back. The only state is the theoretical arrival time (TAT) of the
+     * next permit, updated with a single CAS; there is no timer thread and no lock.
+     */
+    static class GcraRateLimiter implements RateLimiter, PersistentState {
+
+        private final long emissionIntervalNanos;
+        private final long burstNanos;
+        private final LongSupplier clock;
+        private final AtomicLong theoreticalArrivalTime;
+
+        /**
+         * Constructor for GcraRateLimiter.
+         *
+         * @param timeUnit     The time unit for request limits.
+         * @param requestLimit The limit for the number of requests per timeUnit.
+         * @param burst        How many permits may be taken back to back; 1 means strictly even spacing.
+         */
+        GcraRateLimiter(TimeUnit timeUnit, int requestLimit, int burst) {
+            this(timeUnit, requestLimit, burst, System::nanoTime);
+        }
+
+        /**
+         * Constructor for tests GcraRateLimiter.
+         */
+        GcraRateLimiter(TimeUnit timeUnit, int requestLimit, int burst, LongSupplier clock) {
+            if (requestLimit <= 0) {
+                throw new IllegalArgumentException("Request limit must be positive");
+            }
+            if (burst <= 0) {
+                throw new IllegalArgumentException("Burst must be positive");
+            }
+
+            this.emissionIntervalNanos = (timeUnit.toNanos(1) + requestLimit - 1) / requestLimit;
+            this.burstNanos = emissionIntervalNanos * burst;
+            this.clock = clock;
+            this.theoreticalArrivalTime = new AtomicLong(clock.getAsLong());
+        }
+
+        @Override
+        public long reserve(int permits, long maxWaitNanos) {
+            long cost = emissionIntervalNanos * permits;
+            while (true) {
+                long now = clock.getAsLong();
+                long tat = theoreticalArrivalTime.get();
+                long next = Math.max(tat, now) + cost;
+                long wait = next - burstNanos - now;
+                if (wait > maxWaitNanos) {
+                    return -1;
+                }
+                if (theoreticalArrivalTime.compareAndSet(tat, next)) {
+                    return Math.max(wait, 0);
+                }
+            }
+        }
+
+        @Override
+        public long waitNanos(int permits) {
+            long now = clock.getAsLong();
+            long next = Math.max(theoreticalArrivalTime.get(), now) + emissionIntervalNanos * permits;
+            return Math.max(next - burstNanos - now, 0);
+        }
+
+        @Override
+        public void writeState(DataOutput out) throws IOException {
+            out.writeLong(emissionIntervalNanos);
+            out.writeLong(burstNanos);
+            out.writeLong(theoreticalArrivalTime.get() - clock.getAsLong());
+        }
+
+        @Override
+        public void readState(DataInput in, long elapsedNanos) throws IOException {
+            checkSavedConfig(in, emissionIntervalNanos, burstNanos);
+            theoreticalArrivalTime.set(clock.getAsLong() + in.readLong() - elapsedNanos);
+        }
+    }
+
+    /**
+     * Enforces several quotas together, e.g. per second and per day: a permit is granted only when every
+     * window allows it. Each window's state is one long, so a call costs O(K) CAS operations for K windows and
+     * takes no lock. If another caller changes a window mid-update, the windows already charged are rolled
+     * back and the call retries. A smooth window changed by others in the meantime stays over-charged, which
+     * only errs on the safe side.
+     */
+    static class MultiWindowRateLimiter implements RateLimiter, PersistentState {
+
+        private final Window[] windows;
+        private final AtomicLongArray states;
+        private final LongSupplier clock;
+        private final int maxPermits;
+
+        /**
+         * Constructor for MultiWindowRateLimiter on the wall clock, so that fixed windows follow UTC days.
+         *
+         * @param windows The quotas to enforce.
+         */
+        MultiWindowRateLimiter(List<Window> windows) {
+            this(windows, CrptApi::epochNanos);
+        }
+
+        /**
+         * Constructor for tests MultiWindowRateLimiter.
+         */
+        MultiWindowRateLimiter(List<Window> windows, LongSupplier clock) {
+            if (windows.isEmpty()) {
+                throw new IllegalArgumentException("At least one window is required");
+            }
+
+            this.windows = windows.toArray(new Window[0]);
+            this.states = new AtomicLongArray(this.windows.length);
+            this.clock = clock;
+            long now = clock.getAsLong();
+            int max = Integer.MAX_VALUE;
+            for (int i = 0; i < this.windows.length; i++) {
+                states.set(i, this.windows[i].initialState(now));
+                max = Math.min(max, this.windows[i].maxPermits());
+            }
+            this.maxPermits = max;
+        }
+
+        @Override
+        public long reserve(int permits, long maxWaitNanos) {
+            if (permits > maxPermits) {
+                throw new IllegalArgumentException("Cannot take " + permits + " permits from a window of "
+                        + maxPermits);
+            }
+
+            int count = windows.length;
+            long[] observed = new long[count];
+            while (true) {
+                long now = clock.getAsLong();
+                long grantAt = now;
+                for (int i = 0; i < count; i++) {
+                    observed[i] = states.get(i);
+                    grantAt = Math.max(grantAt, windows[i].readyAt(observed[i], now, permits));
+                }
+                long wait = grantAt - now;
+                if (wait > maxWaitNanos) {
+                    return -1;
+                }
+
+                int charged = 0;
+                while (charged < count && states.compareAndSet(charged, observed[charged],
+                        windows[charged].charge(observed[charged], grantAt, permits))) {
+                    charged++;
+                }
+                if (charged == count) {
+                    return wait;
+                }
+                for (int i = 0; i < charged; i++) {
+                    long ownCharge = windows[i].charge(observed[i], grantAt, permits);
+                    long current;
+                    long rolledBack;
+                    do {
+                        current = states.get(i);
+                        rolledBack = current == ownCharge
+                                ? observed[i]
+                                : windows[i].uncharge(current, grantAt, permits);
+                    } while (rolledBack != current && !states.compareAndSet(i, current, rolledBack));
+                }
+            }
+        }
+
+        @Override
+        public long waitNanos(int permits) {
+            long now = clock.getAsLong();
+            long grantAt = now;
+            for (int i = 0; i < windows.length; i++) {
+                grantAt = Math.max(grantAt, windows[i].readyAt(states.get(i), now, permits));
+            }
+            return grantAt - now;
+        }
+
+        @Override
+        public int maxPermits() {
+            return maxPermits;
+        }
+
+        /**
+         * Returns how many permits the window has left right now, e.g. the remaining daily quota.
+         *
+         * @param window The index of the window, in the order given to the constructor.
+         * @return The number of permits left.
+         */
+        long remaining(int window) {
+            return windows[window].remaining(states.get(window), clock.getAsLong());
+        }
+
+        @Override
+        public void writeState(DataOutput out) throws IOException {
+            long now = clock.getAsLong();
+            out.writeLong(windows.length);
+            for (int i = 0; i < windows.length; i++) {
+                windows[i].writeConfig(out);
+                windows[i].writeState(out, states.get(i), now);
+            }
+        }
+
+        @Override
+        public void readState(DataInput in, long elapsedNanos) throws IOException {
+            checkSavedConfig(in, windows.length);
+            long now = clock.getAsLong();
+            long[] restored = new long[windows.length];
+            for (int i = 0; i < windows.length; i++) {
+                windows[i].checkConfig(in);
+                restored[i] = windows[i].readState(in, now, elapsedNanos);
+            }
+            for (int i = 0; i < windows.length; i++) {
+                states.set(i, restored[i]);
+            }
+        }
+
+        /**
+         * One quota of a {@link MultiWindowRateLimiter}.
+         */
+        static class Window {
+
+            private final long periodNanos;
+            private final long limit;
+            private final long intervalNanos;
+            private final long burstNanos;
+            private final boolean fixed;
+
+            private Window(Duration period, long limit, int burst, boolean fixed) {
+                if (limit <= 0 || limit > Integer.MAX_VALUE) {
+                    throw new IllegalArgumentException("Limit must be positive and fit an int");
+                }
+                if (burst <= 0) {
+                    throw new IllegalArgumentException("Burst must be positive");
+                }
+
+                this.periodNanos = period.toNanos();
+                this.limit = limit;
+                this.intervalNanos = (periodNanos + limit - 1) / limit;
+                this.burstNanos = intervalNanos * burst;
+                this.fixed = fixed;
+            }
+
+            /**
+             * A calendar-aligned window, e.g. a UTC day, that allows limit permits and then resets.
+             *
+             * @param period The length of the window.
+             * @param limit  The number of permits per window.
+             * @return The window.
+             */
+            static Window fixed(Duration period, long limit) {
+                return new Window(period, limit, 1, true);
+            }
+
+            /**
+             * A GCRA window that spaces limit permits evenly over the period, allowing burst back to back.
+             *
+             * @param period The period.
+             * @param limit  The number of permits per period.
+             * @param burst  How many permits may be taken back to back.
+             * @return The window.
+             */
+            static Window smooth(Duration period, long limit, int burst) {
+                return new Window(period, limit, burst, false);
+            }
+
+            long initialState(long now) {
+                return fixed ? pack(index(now), 0) : now;
+            }
+
+            int maxPermits() {
+                return fixed ? (int) limit : Integer.MAX_VALUE;
+            }
+
+            /**
+             * Returns when the permits can be granted. More permits than the limit, which only a prediction asks
+             * for, spill over into as many later windows as they fill.
+             */
+            long readyAt(long state, long now, int permits) {
+                if (!fixed) {
+                    return Math.max(now, state + intervalNanos * permits - burstNanos);
+                }
+
+                long currentIndex = index(now);
+                long stateIndex = unpackIndex(state, currentIndex);
+                if (stateIndex < currentIndex) {
+                    return permits <= limit ? now : (currentIndex + (permits - 1) / limit) * periodNanos;
+                }
+                long later = (unpackCount(state) + permits - 1) / limit;
+                if (later > 0) {
+                    return (stateIndex + later) * periodNanos;
+                }
+                return stateIndex > currentIndex ? stateIndex * periodNanos : now;
+            }
+
+            long charge(long state, long at, int permits) {
+                if (!fixed) {
+                    return Math.max(state, at) + intervalNanos * permits;
+                }
+                long index = index(at);
+                return unpackIndex(state, index) == index ? state + permits : pack(index, permits);
+            }
+
+            /**
+             * Takes back permits charged at the given time from a state others have charged since.
+             *
+             * @return The state without the permits, or the same state if they cannot safely be taken back.
+             */
+            long uncharge(long state, long chargedAt, int permits) {
+                if (!fixed) {
+                    return state;
+                }
+                long index = index(chargedAt);
+                return unpackIndex(state, index) == index ? state - permits : state;
+            }
+
+            long remaining(long state, long now) {
+                if (!fixed) {
+                    return Math.max(burstNanos - Math.max(state - now, 0), 0) / intervalNanos;
+                }
+                long currentIndex = index(now);
+                return unpackIndex(state, currentIndex) == currentIndex ? limit - unpackCount(state) : limit;
+            }
+
+            void writeConfig(DataOutput out) throws IOException {
+                out.writeLong(periodNanos);
+                out.writeLong(limit);
+                out.writeLong(burstNanos);
+                out.writeBoolean(fixed);
+            }
+
+            void checkConfig(DataInput in) throws IOException {
+                checkSavedConfig(in, periodNanos, limit, burstNanos);
+                if (in.readBoolean() != fixed) {
+                    throw new IOException("Saved for another limiter configuration");
+                }
+            }
+
+            /**
+             * Writes a smooth window's TAT relative to now, or a fixed window's index and count. Fixed windows are
+             * aligned to the wall clock, so their index is kept as is: a start rebuilt from two clock readings could
+             * land just before the window and restore the count into the previous window, resetting the quota.
+             */
+            void writeState(DataOutput out, long state, long now) throws IOException {
+                if (fixed) {
+                    out.writeLong(unpackIndex(state, index(now)));
+                    out.writeLong(unpackCount(state));
+                } else {
+                    out.writeLong(state - now);
+                }
+            }
+
+            long readState(DataInput in, long now, long elapsedNanos) throws IOException {
+                return fixed ? pack(in.readLong(), in.readLong()) : now + in.readLong() - elapsedNanos;
+            }
+
+            private long index(long time) {
+                return Math.floorDiv(time, periodNanos);
+            }
+
+            /**
+             * A fixed window's state packs the low 32 bits of the window index and the permit count.
+             */
+            private static long pack(long index, long count) {
+                return index << 32 | count;
+            }
+
+            private static long unpackIndex(long state, long nearIndex) {
+                return nearIndex + (int) ((state >>> 32) - nearIndex);
+            }
+
+            private static long unpackCount(long state) {
+                return state & 0xFFFFFFFFL;
+            }
+        }
+    }
+
+    /**
+     * GCRA limiter that warms up: after construction, and again after a quiet period of at least the warm-up
+     * period, the permitted rate starts at the cold rate and ramps linearly to the steady rate over the
+     * warm-up period. At most maxBurst permits are taken back to back at any rate.
+     */
+    static class WarmupRateLimiter implements RateLimiter, PersistentState {
+
+        private final long timeUnitNanos;
+        private final double steadyLimit;
+        private final double coldLimit;
+        private final long warmupNanos;
+        private final int maxBurst;
+        private final LongSupplier clock;
+        private final Lock lock = new ReentrantLock();
+        private long theoreticalArrivalTime;
+        private long warmupStart;
+
+        /**
+         * Constructor for WarmupRateLimiter.
+         *
+         * @param timeUnit         The time unit for request limits.
+         * @param requestLimit     The steady limit for the number of requests per timeUnit.
+         * @param coldRequestLimit The limit per timeUnit when cold.
+         * @param warmupPeriod     How long the rate takes to ramp from cold to steady.
+         * @param maxBurst         How many permits may be taken back to back.
+         */
+        WarmupRateLimiter(TimeUnit timeUnit, int requestLimit, int coldRequestLimit, Duration warmupPeriod,
+                          int maxBurst) {
+            this(timeUnit, requestLimit, coldRequestLimit, warmupPeriod, maxBurst, System::nanoTime);
+        }
+
+        /**
+         * Constructor for tests WarmupRateLimiter.
+         */
+        WarmupRateLimiter(TimeUnit timeUnit, int requestLimit, int coldRequestLimit, Duration warmupPeriod,
+                          int maxBurst, LongSupplier clock) {
+            if (coldRequestLimit <= 0 || requestLimit < coldRequestLimit) {
+                throw new IllegalArgumentException("Request limits must be positive and cold <= steady");
+            }
+            if (maxBurst <= 0) {
+                throw new IllegalArgumentException("Burst must be positive");
+            }
+
+            this.timeUnitNanos = timeUnit.toNanos(1);
+            this.steadyLimit = requestLimit;
+            this.coldLimit = coldRequestLimit;
+            this.warmupNanos = warmupPeriod.toNanos();
+            this.maxBurst = maxBurst;
+            this.clock = clock;
+            this.theoreticalArrivalTime = clock.getAsLong();
+            this.warmupStart = theoreticalArrivalTime;
+        }
+
+        @Override
+        public long reserve(int permits, long maxWaitNanos) {
+            lock.lock();
+            try {
+                long now = clock.getAsLong();
+                if (now - theoreticalArrivalTime >= warmupNanos) {
+                    warmupStart = now;
+                }
+                long start = Math.max(theoreticalArrivalTime, now);
+                long interval = intervalNanos(start);
+                long wait = start + interval * permits - interval * maxBurst - now;
+                if (wait > maxWaitNanos) {
+                    return -1;
+                }
+                theoreticalArrivalTime = start + interval * permits;
+                return Math.max(wait, 0);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public long waitNanos(int permits) {
+            lock.lock();
+            try {
+                long now = clock.getAsLong();
+                long start = Math.max(theoreticalArrivalTime, now);
+                long interval = now - theoreticalArrivalTime >= warmupNanos
+                        ? (long) Math.ceil(timeUnitNanos / coldLimit)
+                        : intervalNanos(start);
+                return Math.max(start + interval * permits - interval * maxBurst - now, 0);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private long intervalNanos(long at) {
+            double warmth = warmupNanos == 0 ? 1 : Math.min((double) (at - warmupStart) / warmupNanos, 1);
+            return (long) Math.ceil(timeUnitNanos / (coldLimit + (steadyLimit - coldLimit) * warmth));
+        }
+
+        @Override
+        public void writeState(DataOutput out) throws IOException {
+            long tat;
+            long start;
+            lock.lock();
+            try {
+                long now = clock.getAsLong();
+                tat = theoreticalArrivalTime - now;
+                start = warmupStart - now;
+            } finally {
+                lock.unlock();
+            }
+
+            writeConfig(out);
+            out.writeLong(tat);
+            out.writeLong(start);
+        }
+
+        @Override
+        public void readState(DataInput in, long elapsedNanos) throws IOException {
+            checkSavedConfig(in, timeUnitNanos, Double.doubleToLongBits(steadyLimit),
+                    Double.doubleToLongBits(coldLimit), warmupNanos, maxBurst);
+            long tat = in.readLong();
+            long start = in.readLong();
+
+            lock.lock();
+            try {
+                long now = clock.getAsLong();
+                theoreticalArrivalTime = now + tat - elapsedNanos;
+                warmupStart = now + start - elapsedNanos;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void writeConfig(DataOutput out) throws IOException {
+            out.writeLong(timeUnitNanos);
+            out.writeLong(Double.doubleToLongBits(steadyLimit));
+            out.writeLong(Double.doubleToLongBits(coldLimit));
+            out.writeLong(warmupNanos);
+            out.writeLong(maxBurst);
+        }
+    }
+
+    /**
+     * GCRA limiter whose rate adapts to the server with AIMD. A 429 or 503 response cuts the limit by the
+     * backoff factor (at most once per timeUnit, so a burst of rejections counts once) and pauses all callers
+     * for the Retry-After delay. Every 2xx response raises the limit by step / limit, i.e. by step per timeUnit
+     * worth of requests, up to the configured requestLimit. Other responses, e.g. a 400 or 401 that says nothing
+     * about the server's capacity, leave the limit as it is.
+     */
+    static class AdaptiveRateLimiter implements RateLimiter, PersistentState {
+
+        private final long timeUnitNanos;
+        private final double maxLimit;
+        private final double minLimit;
+        private final double backoffFactor;
+        private final double step;
+        private final int burst;
+        private final LongSupplier clock;
+        private final AtomicLong theoreticalArrivalTime;
+        private final AtomicLong limitBits;
+        private final AtomicLong nextDecreaseAt;
+
+        /**
+         * Constructor for AdaptiveRateLimiter halving the limit on throttling and adding 1 per window.
+         *
+         * @param timeUnit     The time unit for request limits.
+         * @param requestLimit The highest limit for the number of requests per timeUnit.
+         */
+        AdaptiveRateLimiter(TimeUnit timeUnit, int requestLimit) {
+            this(timeUnit, requestLimit, 1, 0.5, 1, 1, System::nanoTime);
+        }
+
+        /**
+         * Constructor for tests AdaptiveRateLimiter.
+         */
+        AdaptiveRateLimiter(TimeUnit timeUnit, int requestLimit, int minRequestLimit, double backoffFactor,
+                            double step, int burst, LongSupplier clock) {
+            if (minRequestLimit <= 0 || requestLimit < minRequestLimit) {
+                throw new IllegalArgumentException("Request limits must be positive and min <= max");
+            }
+            if (backoffFactor <= 0 || backoffFactor >= 1) {
+                throw new IllegalArgumentException("Backoff factor must be between 0 and 1");
+            }
+            if (burst <= 0) {
+                throw new IllegalArgumentException("Burst must be positive");
+            }
+
+            this.timeUnitNanos = timeUnit.toNanos(1);
+            this.maxLimit = requestLimit;
+            this.minLimit = minRequestLimit;
+            this.backoffFactor = backoffFactor;
+            this.step = step;
+            this.burst = burst;
+            this.clock = clock;
+            this.theoreticalArrivalTime = new AtomicLong(clock.getAsLong());
+            this.limitBits = new AtomicLong(Double.doubleToRawLongBits(maxLimit));
+            this.nextDecreaseAt = new AtomicLong(clock.getAsLong());
+        }
+
+        /**
+         * Returns the limit in effect, in requests per timeUnit.
+         */
+        double currentLimit() {
+            return Double.longBitsToDouble(limitBits.get());
+        }
+
+        @Override
+        public long reserve(int permits, long maxWaitNanos) {
+            long interval = intervalNanos();
+            while (true) {
+                long now = clock.getAsLong();
+                long tat = theoreticalArrivalTime.get();
+                long next = Math.max(tat, now) + interval * permits;
+                long wait = next - interval * burst - now;
+                if (wait > maxWaitNanos) {
+                    return -1;
+                }
+                if (theoreticalArrivalTime.compareAndSet(tat, next)) {
+                    return Math.max(wait, 0);
+                }
+            }
+        }
+
+        @Override
+        public long waitNanos(int permits) {
+            long interval = intervalNanos();
+            long now = clock.getAsLong();
+            long next = Math.max(theoreticalArrivalTime.get(), now) + interval * permits;
+            return Math.max(next - interval * burst - now, 0);
+        }
+
+        @Override
+        public void onResponse(int code, long retryAfterNanos) {
+            if (code == 429 || code == 503) {
+                long now = clock.getAsLong();
+                long decreaseAt = nextDecreaseAt.get();
+                if (now - decreaseAt >= 0 && nextDecreaseAt.compareAndSet(decreaseAt, now + timeUnitNanos)) {
+                    double limit = updateLimit(true);
+                    log.info("Throttled with code {}, request limit lowered to {}", code, limit);
+                }
+                if (retryAfterNanos > 0) {
+                    // The burst is taken off the TAT when waiting, so it is added back: nobody goes before
+                    // Retry-After, and the first caller goes right then.
+                    long pausedUntil = now + retryAfterNanos + intervalNanos() * (burst - 1);
+                    theoreticalArrivalTime.accumulateAndGet(pausedUntil, Math::max);
+                }
+            } else if (code >= 200 && code < 300 && currentLimit() < maxLimit) {
+                updateLimit(false);
+            }
+        }
+
+        private double updateLimit(boolean decrease) {
+            while (true) {
+                long bits = limitBits.get();
+                double limit = Double.longBitsToDouble(bits);
+                double updated = decrease
+                        ? Math.max(limit * backoffFactor, minLimit)
+                        : Math.min(limit + step / limit, maxLimit);
+                if (limitBits.compareAndSet(bits, Double.doubleToRawLongBits(updated))) {
+                    return updated;
+                }
+            }
+        }
+
+        private long intervalNanos() {
+            return (long) Math.ceil(timeUnitNanos / currentLimit());
+        }
+
+        /**
+         * Writes the learned limit along with the TAT, so a restart does not probe from the maximum again.
+         */
+        @Override
+        public void writeState(DataOutput out) throws IOException {
+            long now = clock.getAsLong();
+            out.writeLong(timeUnitNanos);
+            out.writeLong(Double.doubleToLongBits(maxLimit));
+            out.writeLong(Double.doubleToLongBits(minLimit));
+            out.writeLong(theoreticalArrivalTime.get() - now);
+            out.writeLong(limitBits.get());
+            out.writeLong(nextDecreaseAt.get() - now);
+        }
+
+        @Override
+        public void readState(DataInput in, long elapsedNanos) throws IOException {
+            checkSavedConfig(in, timeUnitNanos, Double.doubleToLongBits(maxLimit), Double.doubleToLongBits(minLimit));
+            long tat = in.readLong();
+            long bits = in.readLong();
+            long decreaseAt = in.readLong();
+
+            long now = clock.getAsLong();
+            theoreticalArrivalTime.set(now + tat - elapsedNanos);
+            limitBits.set(bits);
+            nextDecreaseAt.set(now + decreaseAt - elapsedNanos);
+        }
+    }
+
+    /**
+     * GCRA limiter whose rate, window and burst can be changed at runtime, e.g. by ops during an incident, with
+     * {@link #reconfigure(Duration, int, int)} or through a {@link RateLimitConfigWatcher}. A change applies
+     * atomically: the wait already owed is rescaled to the new rate, so lowering the rate hands out no extra
+     * permits and raising it hands out no burst, and callers already waiting keep their place in line but
+     * are woken to wait at the new rate.
+     */
+    static class ReconfigurableRateLimiter implements RateLimiter, PersistentState {
+
+        private final LongSupplier clock;
+        private final Lock lock = new ReentrantLock();
+        private final Condition reconfigured = lock.newCondition();
+        private Config config;
+        private long theoreticalArrivalTime;
+
+        /**
+         * Constructor for ReconfigurableRateLimiter.
+         *
+         * @param window       The window the request limit applies to.
+         * @param requestLimit The limit for the number of requests per window.
+         * @param burst        How many permits may be taken back to back.
+         */
+        ReconfigurableRateLimiter(Duration window, int requestLimit, int burst) {
+            this(window, requestLimit, burst, System::nanoTime);
+        }
+
+        /**
+         * Constructor for tests ReconfigurableRateLimiter.
+         */
+        ReconfigurableRateLimiter(Duration window, int requestLimit, int burst, LongSupplier clock) {
+            this.clock = clock;
+            this.theoreticalArrivalTime = clock.getAsLong();
+            this.config = new Config(window, requestLimit, burst, theoreticalArrivalTime);
+        }
+
+        /**
+         * Changes the limits for waiting and future callers.
+         *
+         * @param window       The window the request limit applies to.
+         * @param requestLimit The limit for the number of requests per window.
+         * @param burst        How many permits may be taken back to back.
+         */
+        void reconfigure(Duration window, int requestLimit, int burst) {
+            lock.lock();
+            try {
+                long now = clock.getAsLong();
+                Config updated = new Config(window, requestLimit, burst, now);
+                theoreticalArrivalTime = now + rescale(Math.max(theoreticalArrivalTime - now, 0), config, updated);
+                config.next = updated;
+                config = updated;
+                reconfigured.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            log.info("Rate limit changed to {} per {}, burst {}", requestLimit, window, burst);
+        }
+
+        Duration window() {
+            return currentConfig().window;
+        }
+
+        int requestLimit() {
+            return currentConfig().requestLimit;
+        }
+
+        int burst() {
+            return currentConfig().burst;
+        }
+
+        @Override
+        public long reserve(int permits, long maxWaitNanos) {
+            lock.lock();
+            try {
+                return reserveLocked(permits, maxWaitNanos, clock.getAsLong());
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public long waitNanos(int permits) {
+            lock.lock();
+            try {
+                long now = clock.getAsLong();
+                long next = Math.max(theoreticalArrivalTime, now) + config.intervalNanos * permits;
+                return Math.max(next - config.burstNanos - now, 0);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Waits for the reserved permits on a condition rather than sleeping, so that a reconfiguration can
+         * move the wait. If the new rate pushes the wait past maxWaitNanos, the permits are given back.
+         */
+        @Override
+        public boolean tryAcquire(int permits, long maxWaitNanos) throws InterruptedException {
+            lock.lockInterruptibly();
+            try {
+                long startedAt = clock.getAsLong();
+                long wait = reserveLocked(permits, maxWaitNanos, startedAt);
+                if (wait < 0) {
+                    return false;
+                }
+
+                Config reservedUnder = config;
+                long grantAt = startedAt + wait;
+                while (true) {
+                    long now = clock.getAsLong();
+                    if (grantAt - now <= 0) {
+                        return true;
+                    }
+                    reconfigured.awaitNanos(grantAt - now);
+
+                    if (reservedUnder != config) {
+                        while (reservedUnder.next != null) {
+                            Config next = reservedUnder.next;
+                            grantAt = next.since + rescale(Math.max(grantAt - next.since, 0), reservedUnder, next);
+                            reservedUnder = next;
+                        }
+                        if (grantAt - startedAt > maxWaitNanos) {
+                            theoreticalArrivalTime -= config.intervalNanos * permits;
+                            return false;
+                        }
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void writeState(DataOutput out) throws IOException {
+            long tat;
+            Config current;
+            lock.lock();
+            try {
+                current = config;
+                tat = theoreticalArrivalTime - clock.getAsLong();
+            } finally {
+                lock.unlock();
+            }
+
+            out.writeLong(current.intervalNanos);
+            out.writeLong(current.burstNanos);
+            out.writeLong(tat);
+        }
+
+        /**
+         * Restores the TAT, rescaled to the current rate if it was saved under another one.
+         */
+        @Override
+        public void readState(DataInput in, long elapsedNanos) throws IOException {
+            long intervalNanos = in.readLong();
+            long burstNanos = in.readLong();
+            long tat = in.readLong();
+            if (intervalNanos <= 0 || burstNanos <= 0) {
+                throw new IOException("Invalid saved configuration");
+            }
+
+            lock.lock();
+            try {
+                long now = clock.getAsLong();
+                long debt = Math.max(tat - elapsedNanos, 0);
+                theoreticalArrivalTime = now + (long) (debt * ((double) config.intervalNanos / intervalNanos));
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private long reserveLocked(int permits, long maxWaitNanos, long now) {
+            long next = Math.max(theoreticalArrivalTime, now) + config.intervalNanos * permits;
+            long wait = next - config.burstNanos - now;
+            if (wait > maxWaitNanos) {
+                return -1;
+            }
+            theoreticalArrivalTime = next;
+            return Math.max(wait, 0);
+        }
+
+        private Config currentConfig() {
+            lock.lock();
+            try {
+                return config;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Converts a wait owed at one rate into the wait for the same number of permits at another.
+         */
+        private static long rescale(long waitNanos, Config from, Config to) {
+            return (long) (waitNanos * ((double) to.intervalNanos / from.intervalNanos));
+        }
+
+        /**
+         * One configuration; each links to the one that replaced it, so a waiter can replay the changes made
+         * since it reserved.
+         */
+        private static class Config {
+
+            private final Duration window;
+            private final int requestLimit;
+            private final int burst;
+            private final long intervalNanos;
+            private final long burstNanos;
+            private final long since;
+            private Config next;
+
+            Config(Duration window, int requestLimit, int burst, long since) {
+                if (requestLimit <= 0) {
+                    throw new IllegalArgumentException("Request limit must be positive");
+                }
+                if (burst <= 0) {
+                    throw new IllegalArgumentException("Burst must be positive");
+                }
+                if (window.isNegative() || window.isZero()) {
+                    throw new IllegalArgumentException("Window must be positive");
+                }
+
+                this.window = window;
+                this.requestLimit = requestLimit;
+                this.burst = burst;
+                this.intervalNanos = (window.toNanos() + requestLimit - 1) / requestLimit;
+                this.burstNanos = intervalNanos * burst;
+                this.since = since;
+            }
+        }
+    }
+
+    /**
+     * Watches a properties file and applies it to a {@link ReconfigurableRateLimiter} whenever it changes.
+     * The keys are {@code window} (an ISO-8601 duration such as {@code PT1S}), {@code requestLimit} and
+     * {@code burst}; a missing key keeps its current value. An invalid file is logged and ignored.
+     */
+    static class RateLimitConfigWatcher implements Closeable {
+
+        private final Path file;
+        private final ReconfigurableRateLimiter limiter;
+        private final WatchService watchService;
+
+        /**
+         * Constructor for RateLimitConfigWatcher. Applies the file at once if it exists.
+         *
+         * @param file    The properties file.
+         * @param limiter The rate limiter to reconfigure.
+         * @throws IOException If the directory of the file cannot be watched.
+         */
+        RateLimitConfigWatcher(Path file, ReconfigurableRateLimiter limiter) throws IOException {
+            this.file = file.toAbsolutePath();
+            this.limiter = limiter;
+            this.watchService = this.file.getFileSystem().newWatchService();
+            // Editors often replace the file rather than write it, so the directory is watched.
+            this.file.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+            load();
+
+            Thread thread = new Thread(this::watch, "crpt-rate-limit-config-watcher");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /**
+         * Stops watching.
+         */
+        @Override
+        public void close() throws IOException {
+            watchService.close();
+        }
+
+        private void watch() {
+            while (true) {
+                WatchKey key;
+                try {
+                    key = watchService.take();
+                } catch (InterruptedException | ClosedWatchServiceException e) {
+                    return;
+                }
+
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    changed |= event.kind() == StandardWatchEventKinds.OVERFLOW
+                            || file.getFileName().equals(event.context());
+                }
+                if (changed) {
+                    load();
+                }
+                if (!key.reset()) {
+                    log.warn("Stopped watching {}: the directory is gone", file);
+                    return;
+                }
+            }
+        }
+
+        private void load() {
+            Properties properties = new Properties();
+            try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                properties.load(reader);
+            } catch (NoSuchFileException e) {
+                return;
+            } catch (IOException e) {
+                log.warn("Cannot read rate limit config {}: {}", file, e.toString());
+                return;
+            }
+
+            try {
+                String window = properties.getProperty("window");
+                String requestLimit = properties.getProperty("requestLimit");
+                String burst = properties.getProperty("burst");
+                limiter.reconfigure(
+                        window == null ? limiter.window() : Duration.parse(window.trim()),
+                        requestLimit == null ? limiter.requestLimit() : Integer.parseInt(requestLimit.trim()),
+                        burst == null ? limiter.burst() : Integer.parseInt(burst.trim()));
+            } catch (DateTimeParseException | IllegalArgumentException e) {
+                log.warn("Ignoring invalid rate limit config {}: {}", file, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * GCRA limiter whose theoretical arrival time lives in a memory-mapped file, so that every process on
+     * the host that maps the same file shares one quota. The state is updated with an atomic CAS through a
+     * VarHandle on the mapped buffer; there is no lock file and no external service. The file records the
+     * rate and burst of the first limiter that mapped it, and a limiter configured differently is rejected.
+     * Close the limiter once it is no longer used; the mapping is then released with the buffer.
+     */
+    static class SharedMemoryRateLimiter implements RateLimiter, Closeable {
+
+        private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class,
+                ByteOrder.nativeOrder());
+        private static final long MAGIC = 0x4352505452415445L;
+        private static final int MAGIC_OFFSET = 0;
+        private static final int TAT_OFFSET = 8;
+        private static final int EMISSION_INTERVAL_OFFSET = 16;
+        private static final int BURST_OFFSET = 24;
+        private static final int FILE_SIZE = 32;
+
+        private final long emissionIntervalNanos;
+        private final long burstNanos;
+        private volatile MappedByteBuffer state;
+
+        /**
+         * Constructor for SharedMemoryRateLimiter.
+         *
+         * @param file         The file holding the shared state; created if missing.
+         * @param timeUnit     The time unit for request limits.
+         * @param requestLimit The limit for the number of requests per timeUnit, for all processes together.
+         * @param burst        How many permits may be taken back to back.
+         * @throws IOException If the file cannot be mapped, or is shared by a limiter with another configuration.
+         */
+        SharedMemoryRateLimiter(Path file, TimeUnit timeUnit, int requestLimit, int burst) throws IOException {
+            if (requestLimit <= 0) {
+                throw new IllegalArgumentException("Request limit must be positive");
+            }
+            if (burst <= 0) {
+                throw new IllegalArgumentException("Burst must be positive");
+            }
+
+            this.emissionIntervalNanos = (timeUnit.toNanos(1) + requestLimit - 1) / requestLimit;
+            this.burstNanos = emissionIntervalNanos * burst;
+            // The mapping stays valid after the channel is closed.
+            MappedByteBuffer mapped;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE)) {
+                mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE);
+            }
+
+            // A new file is all zeros, i.e. a theoretical arrival time far in the past: the full burst is available.
+            LONGS.compareAndSet(mapped, MAGIC_OFFSET, 0L, MAGIC);
+            if ((long) LONGS.getVolatile(mapped, MAGIC_OFFSET) != MAGIC) {
+                throw new IOException("Not a rate limiter state file: " + file);
+            }
+            LONGS.compareAndSet(mapped, EMISSION_INTERVAL_OFFSET, 0L, emissionIntervalNanos);
+            LONGS.compareAndSet(mapped, BURST_OFFSET, 0L, burstNanos);
+            if ((long) LONGS.getVolatile(mapped, EMISSION_INTERVAL_OFFSET) != emissionIntervalNanos
+                    || (long) LONGS.getVolatile(mapped, BURST_OFFSET) != burstNanos) {
+                throw new IOException("Shared by a limiter with another configuration: " + file);
+            }
+            this.state = mapped;
+        }
+
+        @Override
+        public long reserve(int permits, long maxWaitNanos) {
+            MappedByteBuffer mapped = mapped();
+            long cost = emissionIntervalNanos * permits;
+            while (true) {
+                long now = epochNanos();
+                long tat = (long) LONGS.getVolatile(mapped, TAT_OFFSET);
+                long next = Math.max(tat, now) + cost;
+                long wait = next - burstNanos - now;
+                if (wait > maxWaitNanos) {
+                    return -1;
+                }
+                if (LONGS.compareAndSet(mapped, TAT_OFFSET, tat, next)) {
+                    return Math.max(wait, 0);
+                }
+            }
+        }
+
+        @Override
+        public long waitNanos(int permits) {
+            long now = epochNanos();
+            long next = Math.max((long) LONGS.getVolatile(mapped(), TAT_OFFSET), now) + emissionIntervalNanos * permits;
+            return Math.max(next - burstNanos - now, 0);
+        }
+
+        /**
+         * Drops the mapped buffer, so the mapping is released once it is garbage collected; the shared state stays
+         * in the file for the other processes.
+         */
+        @Override
+        public void close() {
+            state = null;
+        }
+
+        private MappedByteBuffer mapped() {
+            MappedByteBuffer mapped = state;
+            if (mapped == null) {
+                throw new IllegalStateException("Shared memory rate limiter is closed");
+            }
+            return mapped;
+        }
+    }
+
+    /**
+     * Central permit server shared by all CrptApi nodes of a cluster. Nodes lease permits in batches,
+     * so they do not pay a round trip per request.
+     */
+    interface TokenServer {
+
+        /**
+         * Leases up to the given number of permits.
+         *
+         * @param nodeId       The node asking for permits.
+         * @param permits      The number of permits wanted.
+         * @param maxWaitNanos How long the node is willing to wait before it may use the permits.
+         * @return The lease; it holds no permits if none are available within maxWaitNanos.
+         * @throws IOException If the server cannot be reached.
+         */
+        Lease lease(String nodeId, int permits, long maxWaitNanos) throws IOException;
+
+        /**
+         * Gives back the permits of a lease that the node did not use.
+         *
+         * @param nodeId        The node returning permits.
+         * @param lease         The lease the permits came from.
+         * @param unusedPermits The number of permits not used.
+         * @throws IOException If the server cannot be reached.
+         */
+        void release(String nodeId, Lease lease, int unusedPermits) throws IOException;
+    }
+
+    /**
+     * Permits leased from a {@link TokenServer}. Times are relative to receipt, so nodes need no clock sync.
+     */
+    @Data
+    static class Lease {
+
+        private final long id;
+
+        private final int permits;
+
+        private final long waitNanos;
+
+        private final long ttlNanos;
+    }
+
+    /**
+     * In-JVM stand-in for a token server, for tests and single-machine load tests. The cluster quota is a
+     * token bucket; permits returned before their lease expires are put back into it.
+     */
+    static class LocalTokenServer implements TokenServer {
+
+        private final TokenBucketRateLimiter quota;
+        private final long leaseTtlNanos;
+        private final LongSupplier clock;
+        private final AtomicLong leaseIds = new AtomicLong();
+        private final ConcurrentHashMap<Long, Long> leaseExpiries = new ConcurrentHashMap<>();
+
+        /**
+         * Constructor for LocalTokenServer.
+         *
+         * @param timeUnit     The time unit for request limits.
+         * @param requestLimit The limit for the number of requests of the whole cluster.
+         * @param leaseTtl     How long leased permits stay valid.
+         */
+        LocalTokenServer(TimeUnit timeUnit, int requestLimit, Duration leaseTtl) {
+            this(timeUnit, requestLimit, leaseTtl, System::nanoTime);
+        }
+
+        /**
+         * Constructor for tests LocalTokenServer.
+         */
+        LocalTokenServer(TimeUnit timeUnit, int requestLimit, Duration leaseTtl, LongSupplier clock) {
+            this.quota = new TokenBucketRateLimiter(timeUnit, requestLimit, clock);
+            this.leaseTtlNanos = leaseTtl.toNanos();
+            this.clock = clock;
+        }
+
+        @Override
+        public Lease lease(String nodeId, int permits, long maxWaitNanos) {
+            long now = clock.getAsLong();
+            leaseExpiries.values().removeIf(expiresAt -> now - expiresAt >= 0);
+
+            for (int batch = permits; batch > 0; batch /= 2) {
+                long wait = quota.reserve(batch, maxWaitNanos);
+                if (wait >= 0) {
+                    Lease lease = new Lease(leaseIds.incrementAndGet(), batch, wait, leaseTtlNanos);
+                    leaseExpiries.put(lease.getId(), now + leaseTtlNanos);
+                    log.debug("Leased {} permits to node {}", batch, nodeId);
+                    return lease;
+                }
+            }
+            return new Lease(0, 0, quota.waitNanos(1), 0);
+        }
+
+        @Override
+        public void release(String nodeId, Lease lease, int unusedPermits) {
+            Long expiresAt = leaseExpiries.remove(lease.getId());
+            if (expiresAt != null && clock.getAsLong() - expiresAt < 0 && unusedPermits > 0) {
+                quota.refund(Math.min(unusedPermits, lease.getPermits()));
+                log.debug("Node {} returned {} permits", nodeId, unusedPermits);
+            }
+        }
+    }
+
+    /**
+     * Rate limiter of one cluster node that takes permits from batches leased from a {@link TokenServer}.
+     * Only renewing a lease costs a round trip. Leftover permits are returned when a lease is replaced or the
+     * limiter is closed; expired ones are dropped. While the server is unreachable, the node falls back to a
+     * conservative local limiter, e.g. its share of the cluster quota, and retries the server periodically.
+     */
+    static class LeasingRateLimiter implements RateLimiter, Closeable {
+
+        private final TokenServer server;
+        private final String nodeId;
+        private final int batchSize;
+        private final RateLimiter fallback;
+        private final long serverRetryNanos;
+        private final LongSupplier clock;
+        private final Lock renewLock = new ReentrantLock();
+        private final AtomicReference<LeasedPermits> current = new AtomicReference<>(LeasedPermits.NONE);
+        private volatile long serverRetryAt;
+        private volatile boolean serverDown;
+        private volatile long exhaustedUntil;
+
+        /**
+         * Constructor for LeasingRateLimiter.
+         *
+         * @param server      The token server.
+         * @param nodeId      The id of this node.
+         * @param batchSize   How many permits to lease at once.
+         * @param fallback    The limiter to use while the server is unreachable.
+         * @param serverRetry How long to wait before asking an unreachable server again.
+         */
+        LeasingRateLimiter(TokenServer server, String nodeId, int batchSize, RateLimiter fallback,
+                           Duration serverRetry) {
+            this(server, nodeId, batchSize, fallback, serverRetry, System::nanoTime);
+        }
+
+        /**
+         * Constructor for tests LeasingRateLimiter.
+         */
+        LeasingRateLimiter(TokenServer server, String nodeId, int batchSize, RateLimiter fallback,
+                           Duration serverRetry, LongSupplier clock) {
+            if (batchSize <= 0) {
+                throw new IllegalArgumentException("Batch size must be positive");
+            }
+
+            this.server = server;
+            this.nodeId = nodeId;
+            this.batchSize = batchSize;
+            this.fallback = fallback;
+            this.serverRetryNanos = serverRetry.toNanos();
+            this.clock = clock;
+            this.exhaustedUntil = clock.getAsLong();
+        }
+
+        @Override
+        public long reserve(int permits, long maxWaitNanos) {
+            while (true) {
+                long now = clock.getAsLong();
+                LeasedPermits leased = current.get();
+                if (leased.isValid(now)) {
+                    long wait = Math.max(leased.startsAt - now, 0);
+                    if (wait > maxWaitNanos) {
+                        return -1;
+                    }
+                    if (leased.tryTake(permits)) {
+                        return wait;
+                    }
+                }
+                if (serverDown && now - serverRetryAt < 0) {
+                    return fallback.reserve(permits, maxWaitNanos);
+                }
+                if (exhaustedUntil - now > maxWaitNanos) {
+                    return -1;
+                }
+
+                renewLock.lock();
+                try {
+                    if (current.get() != leased) {
+                        continue;
+                    }
+
+                    Lease lease;
+                    try {
+                        returnUnused(leased, now);
+                        lease = server.lease(nodeId, Math.max(batchSize, permits), maxWaitNanos);
+                    } catch (IOException e) {
+                        log.warn("Token server unreachable, falling back to the local limit: {}", e.getMessage());
+                        serverDown = true;
+                        serverRetryAt = now + serverRetryNanos;
+                        return fallback.reserve(permits, maxWaitNanos);
+                    }
+
+                    serverDown = false;
+                    current.set(new LeasedPermits(lease, now));
+                    if (lease.getPermits() < permits) {
+                        // Callers with shorter deadlines need not ask again until the server has permits.
+                        exhaustedUntil = now + lease.getWaitNanos();
+                        return -1;
+                    }
+                } finally {
+                    renewLock.unlock();
+                }
+            }
+        }
+
+        @Override
+        public long waitNanos(int permits) {
+            long now = clock.getAsLong();
+            LeasedPermits leased = current.get();
+            if (leased.isValid(now) && leased.remaining.get() >= permits) {
+                return Math.max(leased.startsAt - now, 0);
+            }
+            if (serverDown) {
+                return fallback.waitNanos(permits);
+            }
+            // After an empty lease the server said when permits come back; otherwise a renewal is optimistically
+            // assumed to succeed, as the server's wait is unknown without a round trip.
+            return Math.max(exhaustedUntil - now, 0);
+        }
+
+        /**
+         * Limited by the fallback, so that whether a caller may ask for its permits does not depend on the server
+         * being reachable.
+         */
+        @Override
+        public int maxPermits() {
+            return fallback.maxPermits();
+        }
+
+        /**
+         * Returns the unused permits of the current lease to the server.
+         */
+        @Override
+        public void close() throws IOException {
+            renewLock.lock();
+            try {
+                returnUnused(current.getAndSet(LeasedPermits.NONE), clock.getAsLong());
+            } finally {
+                renewLock.unlock();
+            }
+        }
+
+        private void returnUnused(LeasedPermits leased, long now) throws IOException {
+            int unused = leased.remaining.getAndSet(0);
+            if (leased.lease != null && unused > 0 && leased.isValid(now)) {
+                server.release(nodeId, leased.lease, unused);
+            }
+        }
+
+        private static class LeasedPermits {
+
+            private static final LeasedPermits NONE = new LeasedPermits(null, 0);
+
+            private final Lease lease;
+            private final long startsAt;
+            private final long expiresAt;
+            private final AtomicInteger remaining;
+
+            LeasedPermits(Lease lease, long receivedAt) {
+                this.lease = lease;
+                this.startsAt = lease == null ? receivedAt : receivedAt + lease.getWaitNanos();
+                this.expiresAt = lease == null ? receivedAt : receivedAt + lease.getTtlNanos();
+                this.remaining = new AtomicInteger(lease == null ? 0 : lease.getPermits());
+            }
+
+            boolean isValid(long now) {
+                return lease != null && now - expiresAt < 0;
+            }
+
+            boolean tryTake(int permits) {
+                while (true) {
+                    int left = remaining.get();
+                    if (left < permits) {
+                        return false;
+                    }
+                    if (remaining.compareAndSet(left, left - permits)) {
+                        return true;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Weighted fair queue in front of a rate limiter. Waiting callers are grouped into flows, e.g. by document
+     * type or owner INN, and served in start-time fair queuing order: every flow gets at least its weight's
+     * share of the rate while it has waiters, and capacity a flow does not use goes to the others. Only one
+     * permit is reserved from the limiter at a time; the caller holding it hands over to the next waiter once
+     * its wait is over. Enqueueing and dispatching cost O(log n) in the number of waiters.
+     */
+    static class WeightedFairQueue {
+
+        private final RateLimiter delegate;
+        private final Map<String, Integer> weights;
+        private final ConcurrentHashMap<String, Flow> flows = new ConcurrentHashMap<>();
+        private final Function<String, Flow> flowFactory = Flow::new;
+        private final Lock lock = new ReentrantLock();
+        private final PriorityQueue<Waiter> waiters = new PriorityQueue<>(Comparator
+                .comparingDouble((Waiter waiter) -> waiter.finishTag)
+                .thenComparingLong(waiter -> waiter.sequence));
+        private final AtomicLong queuedPermits = new AtomicLong();
+        private double virtualTime;
+        private long sequence;
+        private boolean dispatching;
+
+        /**
+         * Constructor for WeightedFairQueue.
+         *
+         * @param delegate The rate limiter shared by all flows.
+         * @param weights  The weight of each flow; flows not listed get weight 1.
+         */
+        WeightedFairQueue(RateLimiter delegate, Map<String, Integer> weights) {
+            if (weights.values().stream().anyMatch(weight -> weight <= 0)) {
+                throw new IllegalArgumentException("Weights must be positive");
+            }
+
+            this.delegate = delegate;
+            this.weights = Map.copyOf(weights);
+        }
+
+        /**
+         * Returns the rate limiter through which the callers of a flow queue.
+         *
+         * @param flowKey The flow, e.g. a document type.
+         * @return The rate limiter of the flow.
+         */
+        RateLimiter forFlow(String flowKey) {
+            if (flowKey == null) {
+                throw new IllegalArgumentException("Flow key must not be null");
+            }
+            Flow flow = flows.get(flowKey);
+            return flow != null ? flow : flows.computeIfAbsent(flowKey, flowFactory);
+        }
+
+        /**
+         * Returns the number of callers waiting in the queue.
+         */
+        int queued() {
+            lock.lock();
+            try {
+                return waiters.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void enqueue(Waiter waiter) {
+            Flow flow = waiter.flow;
+            lock.lock();
+            try {
+                queuedPermits.addAndGet(waiter.permits);
+                waiter.startTag = Math.max(virtualTime, flow.lastFinishTag);
+                waiter.finishTag = waiter.startTag + (double) waiter.permits / flow.weight;
+                waiter.sequence = sequence++;
+                flow.lastFinishTag = waiter.finishTag;
+                waiters.add(waiter);
+                if (dispatching) {
+                    return;
+                }
+                dispatching = true;
+            } finally {
+                lock.unlock();
+            }
+            dispatchNext();
+        }
+
+        /**
+         * Hands the turn to the next waiter: reserves its permits from the limiter and tells it how long to
+         * wait. Called by the holder of the turn once its own wait is over.
+         */
+        private void dispatchNext() {
+            while (true) {
+                Waiter next;
+                lock.lock();
+                try {
+                    next = waiters.poll();
+                    while (next != null && !next.claim()) {
+                        next = waiters.poll();
+                    }
+                    if (next == null) {
+                        dispatching = false;
+                        return;
+                    }
+                    virtualTime = next.startTag;
+                } finally {
+                    lock.unlock();
+                }
+
+                long maxWait = next.maxWaitNanos();
+                long wait = maxWait < 0 ? -1 : delegate.reserve(next.permits, maxWait);
+                next.granted(wait);
+                if (wait >= 0) {
+                    return;
+                }
+            }
+        }
+
+        private class Flow implements RateLimiter {
+
+            private final int weight;
+            private double lastFinishTag;
+
+            Flow(String key) {
+                this.weight = weights.getOrDefault(key, 1);
+            }
+
+            WeightedFairQueue queue() {
+                return WeightedFairQueue.this;
+            }
+
+            /**
+             * Reserves directly from the limiter only if nobody is queued; otherwise the caller would jump the
+             * queue, so -1 is returned.
+             */
+            @Override
+            public long reserve(int permits, long maxWaitNanos) {
+                lock.lock();
+                try {
+                    if (dispatching || !waiters.isEmpty()) {
+                        return -1;
+                    }
+                    return delegate.reserve(permits, maxWaitNanos);
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            /**
+             * Predicts the wait behind everyone already queued, as a new caller is served after them.
+             */
+            @Override
+            public long waitNanos(int permits) {
+                return delegate.waitNanos((int) Math.min(permits + queuedPermits.get(), Integer.MAX_VALUE));
+            }
+
+            @Override
+            public int maxPermits() {
+                return delegate.maxPermits();
+            }
+
+            /**
+             * Queues the caller unless the wait predicted behind the queue is longer than maxWaitNanos. A caller
+             * whose deadline passes while queued leaves the queue.
+             */
+            @Override
+            public boolean tryAcquire(int permits, long maxWaitNanos) throws InterruptedException {
+                if (waitNanos(permits) > maxWaitNanos) {
+                    return false;
+                }
+
+                BlockingWaiter waiter = new BlockingWaiter(this, permits, maxWaitNanos);
+                enqueue(waiter);
+                long wait = waiter.awaitTurn();
+                if (wait < 0) {
+                    return false;
+                }
+                try {
+                    if (wait > 0) {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                } finally {
+                    dispatchNext();
+                }
+                return true;
+            }
+
+            /**
+             * Queues the caller like {@link #tryAcquire(int, long)} does, but the turn and the wait after it are
+             * handled on the scheduler, without a blocked thread.
+             */
+            @Override
+            public CompletableFuture<Void> acquireAsync(int permits, ScheduledExecutorService scheduler) {
+                AsyncWaiter waiter = new AsyncWaiter(this, permits, scheduler);
+                waiter.acquired.whenComplete((ignored, e) -> {
+                    if (waiter.acquired.isCancelled()) {
+                        waiter.cancel();
+                    }
+                });
+                enqueue(waiter);
+                return waiter.acquired;
+            }
+
+            @Override
+            public void onResponse(int code, long retryAfterNanos) {
+                delegate.onResponse(code, retryAfterNanos);
+            }
+        }
+
+        private abstract static class Waiter {
+
+            private static final int WAITING = 0;
+            private static final int CLAIMED = 1;
+            private static final int CANCELLED = 2;
+
+            private final Flow flow;
+            private final int permits;
+            private final AtomicInteger state = new AtomicInteger(WAITING);
+            private double startTag;
+            private double finishTag;
+            private long sequence;
+
+            Waiter(Flow flow, int permits) {
+                this.flow = flow;
+                this.permits = permits;
+            }
+
+            boolean claim() {
+                return leave(CLAIMED);
+            }
+
+            boolean cancel() {
+                return leave(CANCELLED);
+            }
+
+            private boolean leave(int newState) {
+                if (!state.compareAndSet(WAITING, newState)) {
+                    return false;
+                }
+                flow.queue().queuedPermits.addAndGet(-permits);
+                return true;
+            }
+
+            long maxWaitNanos() {
+                return Long.MAX_VALUE;
+            }
+
+            /**
+             * Called once the waiter's turn has come.
+             *
+             * @param waitNanos How long to wait for the reserved permits, or -1 if they could not be reserved.
+             */
+            abstract void granted(long waitNanos);
+        }
+
+        private class AsyncWaiter extends Waiter {
+
+            private final CompletableFuture<Void> acquired = new CompletableFuture<>();
+            private final ScheduledExecutorService scheduler;
+
+            AsyncWaiter(Flow flow, int permits, ScheduledExecutorService scheduler) {
+                super(flow, permits);
+                this.scheduler = scheduler;
+            }
+
+            /**
+             * Hands over on the scheduler even without a wait, so that a run of granted waiters does not recurse.
+             */
+            @Override
+            void granted(long waitNanos) {
+                if (waitNanos < 0) {
+                    acquired.completeExceptionally(new IllegalStateException("The rate limiter refused the permits"));
+                    return;
+                }
+                try {
+                    scheduler.schedule(() -> {
+                        dispatchNext();
+                        acquired.complete(null);
+                    }, waitNanos, TimeUnit.NANOSECONDS);
+                } catch (RuntimeException e) {
+                    dispatchNext();
+                    acquired.completeExceptionally(e);
+                }
+            }
+        }
+
+        private static class BlockingWaiter extends Waiter {
+
+            private static final long PENDING = Long.MIN_VALUE;
+
+            private final Thread thread = Thread.currentThread();
+            private final long enqueuedAt = System.nanoTime();
+            private final long maxWaitNanos;
+            private volatile long waitNanos = PENDING;
+
+            BlockingWaiter(Flow flow, int permits, long maxWaitNanos) {
+                super(flow, permits);
+                this.maxWaitNanos = maxWaitNanos;
+            }
+
+            @Override
+            long maxWaitNanos() {
+                if (maxWaitNanos == Long.MAX_VALUE) {
+                    return Long.MAX_VALUE;
+                }
+                return maxWaitNanos - (System.nanoTime() - enqueuedAt);
+            }
+
+            @Override
+            void granted(long waitNanos) {
+                this.waitNanos = waitNanos;
+                LockSupport.unpark(thread);
+            }
+
+            /**
+             * Parks until the turn comes or the deadline passes.
+             *
+             * @return The wait for the reserved permits, or -1 if they were not reserved in time.
+             */
+            long awaitTurn() throws InterruptedException {
+                boolean interrupted = false;
+                while (waitNanos == PENDING) {
+                    if (maxWaitNanos == Long.MAX_VALUE) {
+                        LockSupport.park(this);
+                    } else {
+                        long remaining = maxWaitNanos();
+                        if (remaining <= 0 && cancel()) {
+                            return -1;
+                        }
+                        LockSupport.parkNanos(this, Math.max(remaining, 1));
+                    }
+                    if (Thread.interrupted()) {
+                        if (cancel()) {
+                            throw new InterruptedException();
+                        }
+                        // Too late to leave the queue: the turn is ours and has to be handed over.
+                        interrupted = true;
+                    }
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+                return waitNanos;
+            }
+        }
+    }
+
+    /**
+     * Limits the number of requests in flight, independently of the rate at which they are sent.
+     */
+    interface ConcurrencyLimiter {
+
+        /**
+         * A limiter that lets every request through.
+         */
+        ConcurrencyLimiter UNLIMITED = new ConcurrencyLimiter() {
+            @Override
+            public boolean tryAcquire(long maxWaitNanos) {
+                return true;
+            }
+
+            @Override
+            public CompletableFuture<Void> acquireAsync() {
+                return CompletableFuture.completedFuture(null);
+            }
+
+            @Override
+            public void release(long rttNanos, boolean dropped) {
+            }
+        };
+
+        /**
+         * Takes a slot for a request, waiting at most maxWaitNanos for one to free up.
+         *
+         * @param maxWaitNanos The longest acceptable wait in nanoseconds.
+         * @return true if a slot was taken.
+         * @throws InterruptedException If the thread is interrupted while waiting.
+         */
+        boolean tryAcquire(long maxWaitNanos) throws InterruptedException;
+
+        /**
+         * Blocks until a slot is free and takes it.
+         *
+         * @throws InterruptedException If the thread is interrupted while waiting.
+         */
+        default void acquire() throws InterruptedException {
+            tryAcquire(Long.MAX_VALUE);
+        }
+
+        /**
+         * Takes a slot without blocking: the returned future completes once a slot is taken.
+         *
+         * @return The future.
+         */
+        CompletableFuture<Void> acquireAsync();
+
+        /**
+         * Gives a slot back and reports how the request went.
+         *
+         * @param rttNanos The round-trip time of the request, or -1 if it was not sent.
+         * @param dropped  Whether the request failed or was throttled by the server.
+         */
+        void release(long rttNanos, boolean dropped);
+    }
+
+    /**
+     * Concurrency limiter that adapts the number of requests in flight to the server's latency, like TCP Vegas.
+     * The lowest RTT seen is taken as the latency without queuing; from it and each sample, the number of
+     * requests queued at the server is estimated as limit * (1 - minRtt / rtt). Below alpha the limit grows,
+     * above beta it shrinks, so a slowing server makes callers queue locally instead of piling up requests on
+     * it. Alpha and beta grow with log10 of the limit. A dropped request cuts the limit by the backoff factor.
+     * The baseline RTT is forgotten every 30 * limit samples, so it follows a server that got slower for good.
+     */
+    static class VegasConcurrencyLimiter implements ConcurrencyLimiter {
+
+        private static final int PROBE_MULTIPLIER = 30;
+
+        private final int minLimit;
+        private final int maxLimit;
+        private final double backoffFactor;
+        private final Lock lock = new ReentrantLock();
+        private final Condition released = lock.newCondition();
+        private final Queue<CompletableFuture<Void>> asyncWaiters = new ArrayDeque<>();
+        private int limit;
+        private int inFlight;
+        private long minRttNanos = Long.MAX_VALUE;
+        private long samplesUntilProbe;
+
+        /**
+         * Constructor for VegasConcurrencyLimiter halving the limit on drops.
+         *
+         * @param initialLimit The number of requests in flight allowed at first.
+         * @param minLimit     The lowest limit.
+         * @param maxLimit     The highest limit.
+         */
+        VegasConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+            this(initialLimit, minLimit, maxLimit, 0.5);
+        }
+
+        /**
+         * Constructor for VegasConcurrencyLimiter.
+         *
+         * @param initialLimit  The number of requests in flight allowed at first.
+         * @param minLimit      The lowest limit.
+         * @param maxLimit      The highest limit.
+         * @param backoffFactor The factor the limit is multiplied by when a request is dropped.
+         */
+        VegasConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, double backoffFactor) {
+            if (minLimit <= 0 || initialLimit < minLimit || maxLimit < initialLimit) {
+                throw new IllegalArgumentException("Limits must be positive and min <= initial <= max");
+            }
+            if (backoffFactor <= 0 || backoffFactor >= 1) {
+                throw new IllegalArgumentException("Backoff factor must be between 0 and 1");
+            }
+
+            this.minLimit = minLimit;
+            this.maxLimit = maxLimit;
+            this.backoffFactor = backoffFactor;
+            this.limit = initialLimit;
+            this.samplesUntilProbe = (long) PROBE_MULTIPLIER * initialLimit;
+        }
+
+        /**
+         * Returns the number of requests in flight currently allowed.
+         */
+        int limit() {
+            lock.lock();
+            try {
+                return limit;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public boolean tryAcquire(long maxWaitNanos) throws InterruptedException {
+            lock.lockInterruptibly();
+            try {
+                long remaining = maxWaitNanos;
+                while (inFlight >= limit) {
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    remaining = released.awaitNanos(remaining);
+                }
+                inFlight++;
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public CompletableFuture<Void> acquireAsync() {
+            CompletableFuture<Void> slot = new CompletableFuture<>();
+            lock.lock();
+            try {
+                if (inFlight >= limit) {
+                    asyncWaiters.add(slot);
+                    return slot;
+                }
+                inFlight++;
+            } finally {
+                lock.unlock();
+            }
+            slot.complete(null);
+            return slot;
+        }
+
+        @Override
+        public void release(long rttNanos, boolean dropped) {
+            List<CompletableFuture<Void>> handedOver = new ArrayList<>();
+            lock.lock();
+            try {
+                // A slot is counted as used for the growth check until the sample is taken.
+                int used = inFlight--;
+                if (dropped) {
+                    limit = Math.max((int) (limit * backoffFactor), minLimit);
+                } else if (rttNanos > 0) {
+                    updateLimit(rttNanos, used);
+                }
+                // Asynchronous waiters get free slots first; they have no thread to wake.
+                while (inFlight < limit && !asyncWaiters.isEmpty()) {
+                    CompletableFuture<Void> waiter = asyncWaiters.poll();
+                    if (!waiter.isDone()) {
+                        inFlight++;
+                        handedOver.add(waiter);
+                    }
+                }
+                for (int free = limit - inFlight; free > 0; free--) {
+                    released.signal();
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            for (CompletableFuture<Void> waiter : handedOver) {
+                // Completed outside the lock, since it runs the caller's continuation.
+                if (!waiter.complete(null)) {
+                    release(-1, false);
+                }
+            }
+        }
+
+        private void updateLimit(long rttNanos, int used) {
+            if (--samplesUntilProbe <= 0) {
+                samplesUntilProbe = (long) PROBE_MULTIPLIER * limit;
+                minRttNanos = rttNanos;
+            }
+            minRttNanos = Math.min(minRttNanos, rttNanos);
+
+            double queued = limit * (1 - (double) minRttNanos / rttNanos);
+            double log = Math.max(Math.log10(limit), 1);
+            if (queued <= 3 * log) {
+                // Only a limit that is actually used tells anything about the server.
+                if (used * 2 >= limit) {
+                    limit = Math.min(limit + (int) log, maxLimit);
+                }
+            } else if (queued >= 6 * log) {
+                limit = Math.max(limit - (int) log, minLimit);
+            }
+        }
+    }
+
+    /**
+     * Keeps an independent rate limiter per tenant key, e.g. participant INN or auth token, so that
+     * organizations with separate quotas do not throttle each other. Lookups of known keys do not allocate.
+     * Keys unused for longer than the idle timeout are evicted during lookups; the timeout should be at
+     * least the time a limiter needs to refill completely, so eviction never hands out extra permits.
+     */
+    static class RateLimiterRegistry {
+
+        private static final long EVICTED = Long.MIN_VALUE;
+
+        private final ConcurrentHashMap<String, KeyState> limiters = new ConcurrentHashMap<>();
+        private final Function<String, KeyState> stateFactory;
+        private final long idleTimeoutNanos;
+        private final LongSupplier clock;
+        private final AtomicLong nextSweep;
+
+        /**
+         * Constructor for RateLimiterRegistry.
+         *
+         * @param limiterFactory Creates the rate limiter for a new key.
+         * @param idleTimeout    How long a key may stay unused before it is evicted.
+         */
+        RateLimiterRegistry(Function<String, RateLimiter> limiterFactory, Duration idleTimeout) {
+            this(limiterFactory, idleTimeout, System::nanoTime);
+        }
+
+        /**
+         * Constructor for tests RateLimiterRegistry.
+         */
+        RateLimiterRegistry(Function<String, RateLimiter> limiterFactory, Duration idleTimeout, LongSupplier clock) {
+            this.stateFactory = key -> new KeyState(limiterFactory.apply(key), clock.getAsLong());
+            this.idleTimeoutNanos = idleTimeout.toNanos();
+            this.clock = clock;
+            this.nextSweep = new AtomicLong(clock.getAsLong() + idleTimeoutNanos);
+        }
+
+        /**
+         * Returns the rate limiter of the key, creating it on first use.
+         *
+         * @param key The tenant key.
+         * @return The rate limiter of the key.
+         */
+        RateLimiter forKey(String key) {
+            if (key == null) {
+                throw new IllegalArgumentException("Tenant key must not be null");
+            }
+
+            long now = clock.getAsLong();
+            while (true) {
+                KeyState state = limiters.get(key);
+                if (state == null) {
+                    state = limiters.computeIfAbsent(key, stateFactory);
+                }
+                long lastUsed = state.lastUsed.get();
+                if (lastUsed == EVICTED) {
+                    limiters.remove(key, state);
+                } else if (state.lastUsed.compareAndSet(lastUsed, Math.max(lastUsed, now))) {
+                    evictIdle(now);
+                    return state.limiter;
+                }
+            }
+        }
+
+        /**
+         * Returns the number of keys currently held.
+         */
+        int size() {
+            return limiters.size();
+        }
+
+        private void evictIdle(long now) {
+            long sweepAt = nextSweep.get();
+            if (now - sweepAt < 0 || !nextSweep.compareAndSet(sweepAt, now + idleTimeoutNanos)) {
+                return;
+            }
+
+            limiters.forEach((key, state) -> {
+                long lastUsed = state.lastUsed.get();
+                // Marking first means a concurrent lookup either sees the mark or refreshes the key in time.
+                if (lastUsed != EVICTED && now - lastUsed > idleTimeoutNanos
+                        && state.lastUsed.compareAndSet(lastUsed, EVICTED)) {
+                    limiters.remove(key, state);
+                }
+            });
+            log.debug("Rate limiter registry holds {} keys after eviction", limiters.size());
+        }
+
+        private static class KeyState {
+
+            private final RateLimiter limiter;
+            private final AtomicLong lastUsed;
+
+            KeyState(RateLimiter limiter, long lastUsed) {
+                this.limiter = limiter;
+                this.lastUsed = new AtomicLong(lastUsed);
+            }
+        }
+    }
+
+    /**
+     * Saves the state of a rate limiter to a small local file, so that a restarted process does not start
+     * with a full burst while the server still counts the requests sent before the restart. The state is
+     * restored on construction, saved at a fixed interval by a daemon thread, off the request path, and saved
+     * once more on close or JVM shutdown. A snapshot is written to a temporary file, synced, and atomically
+     * moved over the previous one, so a crash leaves either the old or the new snapshot. A missing, corrupt
+     * or mismatching file is ignored.
+     */
+    static class RateLimiterStatePersister implements Closeable {
+
+        private static final int MAGIC = 0x43525054;
+        private static final int VERSION = 1;
+
+        private final Path file;
+        private final Path tempFile;
+        private final PersistentState limiter;
+        private final Lock saveLock = new ReentrantLock();
+        private final ScheduledExecutorService scheduler;
+        private final Thread shutdownHook;
+
+        /**
+         * Constructor for RateLimiterStatePersister. Restores the saved state into the limiter, so it should be
+         * created before the limiter is used.
+         *
+         * @param file     The file holding the state; created on the first save.
+         * @param limiter  The rate limiter whose state is kept.
+         * @param interval How often the state is saved.
+         */
+        RateLimiterStatePersister(Path file, PersistentState limiter, Duration interval) {
+            if (interval.isNegative() || interval.isZero()) {
+                throw new IllegalArgumentException("Interval must be positive");
+            }
+
+            this.file = file.toAbsolutePath();
+            this.tempFile = this.file.resolveSibling(this.file.getFileName() + ".tmp");
+            this.limiter = limiter;
+            restore();
+
+            this.scheduler = Executors.newSingleThreadScheduledExecutor(daemonThreads("crpt-rate-limiter-persister"));
+            long intervalNanos = interval.toNanos();
+            scheduler.scheduleWithFixedDelay(this::saveQuietly, intervalNanos, intervalNanos, TimeUnit.NANOSECONDS);
+            this.shutdownHook = new Thread(this::saveQuietly, "crpt-rate-limiter-persister-shutdown");
+            Runtime.getRuntime().addShutdownHook(shutdownHook);
+        }
+
+        /**
+         * Writes a snapshot of the limiter state.
+         *
+         * @throws IOException If the snapshot cannot be written.
+         */
+        void save() throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(limiter.getClass().getName());
+            out.writeLong(epochNanos());
+            limiter.writeState(out);
+            CRC32 checksum = new CRC32();
+            checksum.update(bytes.toByteArray());
+            out.writeLong(checksum.getValue());
+
+            saveLock.lock();
+            try {
+                try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                    channel.force(true);
+                }
+                Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                saveLock.unlock();
+            }
+        }
+
+        /**
+         * Stops the periodic snapshots and writes a final one.
+         */
+        @Override
+        public void close() throws IOException {
+            scheduler.shutdown();
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException ignored) {
+                // The JVM is shutting down and the hook saves the state.
+            }
+            save();
+        }
+
+        private void saveQuietly() {
+            try {
+                save();
+            } catch (IOException | RuntimeException e) {
+                log.warn("Cannot save rate limiter state to {}: {}", file, e.toString());
+            }
+        }
+
+        private void restore() {
+            byte[] bytes;
+            try {
+                bytes = Files.readAllBytes(file);
+            } catch (NoSuchFileException e) {
+                return;
+            } catch (IOException e) {
+                log.warn("Cannot read rate limiter state from {}: {}", file, e.toString());
+                return;
+            }
+
+            int length = bytes.length - Long.BYTES;
+            CRC32 checksum = new CRC32();
+            if (length > 0) {
+                checksum.update(bytes, 0, length);
+            }
+            if (length <= 0 || ByteBuffer.wrap(bytes, length, Long.BYTES).getLong() != checksum.getValue()) {
+                log.warn("Ignoring corrupt rate limiter state in {}", file);
+                return;
+            }
+
+            try {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, 0, length));
+                if (in.readInt() != MAGIC || in.readInt() != VERSION
+                        || !in.readUTF().equals(limiter.getClass().getName())) {
+                    throw new IOException("Not a state file of this limiter");
+                }
+                // A wall clock set back must not move saved times into the future.
+                long elapsedNanos = Math.max(epochNanos() - in.readLong(), 0);
+                limiter.readState(in, elapsedNanos);
+                log.info("Restored rate limiter state saved {} ms ago", TimeUnit.NANOSECONDS.toMillis(elapsedNanos));
+            } catch (IOException e) {
+                log.warn("Ignoring rate limiter state in {}: {}", file, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Turns documents into the JSON that is sent.
+     */
+    interface DocumentSerializer {
+
+        /**
+         * Writes what a default ObjectMapper would, without its reflective bean serializers.
+         */
+        DocumentSerializer DEFAULT = new DocumentSerializer() {
+            @Override
+            public byte[] toBytes(Document document) throws IOException {
+                return DocumentJsonWriter.toBytes(document);
+            }
+
+            @Override
+            public void write(Document document, OutputStream out) throws IOException {
+                DocumentJsonWriter.write(document, out);
+            }
+        };
+
+        /**
+         * Serializes a document into a byte array.
+         *
+         * @param document The document.
+         * @return The JSON in UTF-8.
+         * @throws IOException If the document cannot be serialized.
+         */
+        byte[] toBytes(Document document) throws IOException;
+
+        /**
+         * Serializes a document into a stream, without closing it.
+         *
+         * @param document The document.
+         * @param out      The stream.
+         * @throws IOException If the document cannot be serialized or written.
+         */
+        void write(Document document, OutputStream out) throws IOException;
+
+        /**
+         * Returns a serializer that uses Jackson with the writer's configuration.
+         *
+         * @param writer The writer; it is specialized for {@link Document} if it is not already.
+         * @return The serializer.
+         */
+        static DocumentSerializer of(ObjectWriter writer) {
+            ObjectWriter documentWriter = writer.forType(Document.class);
+            return new DocumentSerializer() {
+                @Override
+                public byte[] toBytes(Document document) throws IOException {
+                    return documentWriter.writeValueAsBytes(document);
+                }
+
+                @Override
+                public void write(Document document, OutputStream out) throws IOException {
+                    try (JsonGenerator generator = documentWriter.getFactory().createGenerator(out)) {
+                        generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+                        documentWriter.writeValue(generator, document);
+                    }
+                }
+            };
+        }
+    }
+
+    /**
+     * Writes documents as JSON byte for byte as a default ObjectMapper does: properties in declaration order, nulls
+     * included, and Jackson's escaping: short escapes for quote, backslash, \b, \t, \n, \f and \r, six-character
+     * hex escapes for other control characters and for each UTF-16 surrogate, and UTF-8 for everything else.
+     * Property names are encoded once, with their punctuation; most characters of a string are copied after one
+     * table lookup. It has to follow the fields of Document, Description and Product, and the golden-file test
+     * compares it with Jackson.
+     */
+    static final class DocumentJsonWriter {
+
+        private static final int BUFFER_SIZE = 8192;
+        // Characters checked against the room in the buffer at once; each takes at most 6 bytes.
+        private static final int STRING_CHUNK = 1024;
+        private static final byte[] HEX = ascii("0123456789ABCDEF");
+        // For ASCII characters: 0 if copied, the letter of a short escape, or -1 for a hex escape.
+        private static final int[] ESCAPES = new int[128];
+
+        private static final byte[] NULL = ascii("null");
+        private static final byte[] TRUE = ascii("true");
+        private static final byte[] FALSE = ascii("false");
+        private static final byte[] DESCRIPTION = ascii("{\"description\":");
+        private static final byte[] DESCRIPTION_PARTICIPANT_INN = ascii("{\"participant_inn\":");
+        private static final byte[] DOC_ID = ascii(",\"doc_id\":");
+        private static final byte[] DOC_STATUS = ascii(",\"doc_status\":");
+        private static final byte[] DOC_TYPE = ascii(",\"doc_type\":");
+        private static final byte[] IMPORT_REQUEST = ascii(",\"import_request\":");
+        private static final byte[] OWNER_INN = ascii(",\"owner_inn\":");
+        private static final byte[] PARTICIPANT_INN = ascii(",\"participant_inn\":");
+        private static final byte[] PRODUCER_INN = ascii(",\"producer_inn\":");
+        private static final byte[] PRODUCTION_DATE = ascii(",\"production_date\":");
+        private static final byte[] PRODUCTION_TYPE = ascii(",\"production_type\":");
+        private static final byte[] PRODUCTS = ascii(",\"products\":");
+        private static final byte[] REG_DATE = ascii(",\"reg_date\":");
+        private static final byte[] REG_NUMBER = ascii(",\"reg_number\":");
+        private static final byte[] CERTIFICATE_DOCUMENT = ascii("{\"certificate_document\":");
+        private static final byte[] CERTIFICATE_DOCUMENT_DATE = ascii(",\"certificate_document_date\":");
+        private static final byte[] CERTIFICATE_DOCUMENT_NUMBER = ascii(",\"certificate_document_number\":");
+        private static final byte[] TNVED_CODE = ascii(",\"tnved_code\":");
+        private static final byte[] UIT_CODE = ascii(",\"uit_code\":");
+        private static final byte[] UITU_CODE = ascii(",\"uitu_code\":");
+
+        static {
+            Arrays.fill(ESCAPES, 0, 0x20, -1);
+            ESCAPES['"'] = '"';
+            ESCAPES['\\'] = '\\';
+            ESCAPES['\b'] = 'b';
+            ESCAPES['\t'] = 't';
+            ESCAPES['\n'] = 'n';
+            ESCAPES['\f'] = 'f';
+            ESCAPES['\r'] = 'r';
+        }
+
+        private final OutputStream out;
+        private final char[] chars = new char[STRING_CHUNK];
+        private byte[] buffer;
+        private int position;
+
+        /**
+         * @param out    The stream the buffer is flushed to, or null to grow the buffer instead.
+         * @param buffer The buffer to start with.
+         */
+        private DocumentJsonWriter(OutputStream out, byte[] buffer) {
+            this.out = out;
+            this.buffer = buffer;
+        }
+
+        static byte[] toBytes(Document document) throws IOException {
+            DocumentJsonWriter writer = new DocumentJsonWriter(null, new byte[BUFFER_SIZE]);
+            writer.writeDocument(document);
+            return Arrays.copyOf(writer.buffer, writer.position);
+        }
+
+        static void write(Document document, OutputStream out) throws IOException {
+            DocumentJsonWriter writer = new DocumentJsonWriter(out, new byte[BUFFER_SIZE]);
+            writer.writeDocument(document);
+            writer.flush();
+        }
+
+        private void writeDocument(Document document) throws IOException {
+            if (document == null) {
+                writeRaw(NULL);
+                return;
+            }
+
+            writeHead(document);
+            writeProducts(document.getProducts());
+            writeTail(document);
+        }
+
+        /**
+         * Writes a document up to the value of its products.
+         */
+        private void writeHead(Document document) throws IOException {
+            writeRaw(DESCRIPTION);
+            Document.Description description = document.getDescription();
+            if (description == null) {
+                writeRaw(NULL);
+            } else {
+                writeRaw(DESCRIPTION_PARTICIPANT_INN);
+                writeString(description.getParticipantInn());
+                writeByte('}');
+            }
+            writeRaw(DOC_ID);
+            writeString(document.getDocId());
+            writeRaw(DOC_STATUS);
+            writeString(document.getDocStatus());
+            writeRaw(DOC_TYPE);
+            writeString(document.getDocType());
+            writeRaw(IMPORT_REQUEST);
+            Boolean importRequest = document.getImportRequest();
+            writeRaw(importRequest == null ? NULL : importRequest ? TRUE : FALSE);
+            writeRaw(OWNER_INN);
+            writeString(document.getOwnerInn());
+            writeRaw(PARTICIPANT_INN);
+            writeString(document.getParticipantInn());
+            writeRaw(PRODUCER_INN);
+            writeString(document.getProducerInn());
+            writeRaw(PRODUCTION_DATE);
+            writeString(document.getProductionDate());
+            writeRaw(PRODUCTION_TYPE);
+            writeString(document.getProductionType());
+            writeRaw(PRODUCTS);
+        }
+
+        /**
+         * Writes the rest of a document after the value of its products.
+         */
+        private void writeTail(Document document) throws IOException {
+            writeRaw(REG_DATE);
+            writeString(document.getRegDate());
+            writeRaw(REG_NUMBER);
+            writeString(document.getRegNumber());
+            writeByte('}');
+        }
+
+        private void writeProducts(List<Document.Product> products) throws IOException {
+            if (products == null) {
+                writeRaw(NULL);
+                return;
+            }
+
+            writeByte('[');
+            writeProducts(products, 0, products.size());
+            writeByte(']');
+        }
+
+        /**
+         * Writes the products from index from to index to as a part of the product array, each preceded by a
+         * comma unless it is the first of the array.
+         */
+        private void writeProducts(List<Document.Product> products, int from, int to) throws IOException {
+            if (products instanceof CompactProductList) {
+                CompactProductList compact = (CompactProductList) products;
+                for (int row = from; row < to; row++) {
+                    if (row > 0) {
+                        writeByte(',');
+                    }
+                    writeCompactProduct(compact, row);
+                }
+                return;
+            }
+
+            boolean first = from == 0;
+            for (Document.Product product : products.subList(from, to)) {
+                if (!first) {
+                    writeByte(',');
+                }
+                first = false;
+                writeProduct(product);
+            }
+        }
+
+        private void writeProduct(Document.Product product) throws IOException {
+            if (product == null) {
+                writeRaw(NULL);
+                return;
+            }
+
+            writeRaw(CERTIFICATE_DOCUMENT);
+            writeString(product.getCertificateDocument());
+            writeRaw(CERTIFICATE_DOCUMENT_DATE);
+            writeString(product.getCertificateDocumentDate());
+            writeRaw(CERTIFICATE_DOCUMENT_NUMBER);
+            writeString(product.getCertificateDocumentNumber());
+            writeRaw(OWNER_INN);
+            writeString(product.getOwnerInn());
+            writeRaw(PRODUCER_INN);
+            writeString(product.getProducerInn());
+            writeRaw(PRODUCTION_DATE);
+            writeString(product.getProductionDate());
+            writeRaw(TNVED_CODE);
+            writeString(product.getTnvedCode());
+            writeRaw(UIT_CODE);
+            writeString(product.getUitCode());
+            writeRaw(UITU_CODE);
+            writeString(product.getUituCode());
+            writeByte('}');
+        }
+
+        private void writeCompactProduct(CompactProductList products, int row) throws IOException {
+            writeRaw(CERTIFICATE_DOCUMENT);
+            writeRaw(products.certificateDocument.json(row));
+            writeRaw(CERTIFICATE_DOCUMENT_DATE);
+            writeDate(products.certificateDocumentDate.epochDay(row));
+            writeRaw(CERTIFICATE_DOCUMENT_NUMBER);
+            writeRaw(products.certificateDocumentNumber.json(row));
+            writeRaw(OWNER_INN);
+            writeRaw(products.ownerInn.json(row));
+            writeRaw(PRODUCER_INN);
+            writeRaw(products.producerInn.json(row));
+            writeRaw(PRODUCTION_DATE);
+            writeDate(products.productionDate.epochDay(row));
+            writeRaw(TNVED_CODE);
+            writeRaw(products.tnvedCode.json(row));
+            writeRaw(UIT_CODE);
+            writeText(products.uitCode, row);
+            writeRaw(UITU_CODE);
+            writeText(products.uituCode, row);
+            writeByte('}');
+        }
+
+        private void writeDate(int epochDay) throws IOException {
+            if (epochDay == CompactProductList.NO_DATE) {
+                writeRaw(NULL);
+                return;
+            }
+
+            LocalDate date = LocalDate.ofEpochDay(epochDay);
+            ensure(12);
+            byte[] bytes = buffer;
+            int p = position;
+            int year = date.getYear();
+            bytes[p++] = '"';
+            bytes[p++] = (byte) ('0' + year / 1000);
+            bytes[p++] = (byte) ('0' + year / 100 % 10);
+            bytes[p++] = (byte) ('0' + year / 10 % 10);
+            bytes[p++] = (byte) ('0' + year % 10);
+            bytes[p++] = '-';
+            bytes[p++] = (byte) ('0' + date.getMonthValue() / 10);
+            bytes[p++] = (byte) ('0' + date.getMonthValue() % 10);
+            bytes[p++] = '-';
+            bytes[p++] = (byte) ('0' + date.getDayOfMonth() / 10);
+            bytes[p++] = (byte) ('0' + date.getDayOfMonth() % 10);
+            bytes[p++] = '"';
+            position = p;
+        }
+
+        private void writeText(CompactProductList.TextColumn column, int row) throws IOException {
+            if (column.isNull(row)) {
+                writeRaw(NULL);
+            } else if (column.isWide(row)) {
+                writeString(column.get(row));
+            } else {
+                writeLatin1(column.bytes, column.start(row), column.end(row));
+            }
+        }
+
+        /**
+         * Encodes a string as a JSON value once, e.g. an entry of a {@link CompactProductList} dictionary.
+         */
+        static byte[] encode(String value) {
+            DocumentJsonWriter writer = new DocumentJsonWriter(null, new byte[value == null ? 4 : value.length() + 2]);
+            try {
+                writer.writeString(value);
+            } catch (IOException e) {
+                // Not thrown: the writer has no stream.
+                throw new UncheckedIOException(e);
+            }
+            return Arrays.copyOf(writer.buffer, writer.position);
+        }
+
+        private void writeString(String value) throws IOException {
+            if (value == null) {
+                writeRaw(NULL);
+                return;
+            }
+
+            writeByte('"');
+            int length = value.length();
+            for (int start = 0; start < length; start += STRING_CHUNK) {
+                int end = Math.min(start + STRING_CHUNK, length);
+                value.getChars(start, end, chars, 0);
+                writeChars(end - start);
+            }
+            writeByte('"');
+        }
+
+        /**
+         * Writes ISO-8859-1 bytes as a JSON string, as {@link CompactProductList} stores most unique values.
+         */
+        private void writeLatin1(byte[] latin1, int from, int to) throws IOException {
+            writeByte('"');
+            for (int start = from; start < to; start += STRING_CHUNK) {
+                int end = Math.min(start + STRING_CHUNK, to);
+                for (int i = start; i < end; i++) {
+                    chars[i - start] = (char) (latin1[i] & 0xFF);
+                }
+                writeChars(end - start);
+            }
+            writeByte('"');
+        }
+
+        /**
+         * Writes the first count characters of the chars buffer, escaped.
+         */
+        private void writeChars(int count) throws IOException {
+            ensure(count * 6);
+            char[] chars = this.chars;
+            byte[] bytes = buffer;
+            int p = position;
+            for (int i = 0; i < count; i++) {
+                char c = chars[i];
+                if (c < 0x80) {
+                    int escape = ESCAPES[c];
+                    if (escape == 0) {
+                        bytes[p++] = (byte) c;
+                    } else if (escape > 0) {
+                        bytes[p++] = '\\';
+                        bytes[p++] = (byte) escape;
+                    } else {
+                        p = writeEscape(c, bytes, p);
+                    }
+                } else if (c < 0x800) {
+                    bytes[p++] = (byte) (0xC0 | c >> 6);
+                    bytes[p++] = (byte) (0x80 | c & 0x3F);
+                } else if (Character.isSurrogate(c)) {
+                    p = writeEscape(c, bytes, p);
+                } else {
+                    bytes[p++] = (byte) (0xE0 | c >> 12);
+                    bytes[p++] = (byte) (0x80 | c >> 6 & 0x3F);
+                    bytes[p++] = (byte) (0x80 | c & 0x3F);
+                }
+            }
+            position = p;
+        }
+
+        private static int writeEscape(char c, byte[] bytes, int p) {
+            bytes[p++] = '\\';
+            bytes[p++] = 'u';
+            bytes[p++] = HEX[c >> 12];
+            bytes[p++] = HEX[c >> 8 & 0xF];
+            bytes[p++] = HEX[c >> 4 & 0xF];
+            bytes[p++] = HEX[c & 0xF];
+            return p;
+        }
+
+        private void writeRaw(byte[] bytes) throws IOException {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buffer, position, bytes.length);
+            position += bytes.length;
+        }
+
+        private void writeByte(char c) throws IOException {
+            ensure(1);
+            buffer[position++] = (byte) c;
+        }
+
+        private void flush() throws IOException {
+            out.write(buffer, 0, position);
+            position = 0;
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (position + bytes <= buffer.length) {
+                return;
+            }
+            if (out == null) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + bytes));
+            } else {
+                flush();
+            }
+        }
+
+        private static byte[] ascii(String text) {
+            return text.getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    /**
+     * Writes what {@link DocumentSerializer#DEFAULT} does, but splits the products of large documents into chunks
+     * that are serialized in parallel on a ForkJoinPool and written in order as soon as each is done. A document
+     * with hundreds of thousands of products is then serialized on all cores, and its first chunks are already on
+     * the wire while later ones are still being serialized. Chunks are serialized into pooled buffers, and at most
+     * two per worker are held at once. Smaller documents are serialized on the calling thread. If a chunk fails,
+     * the chunks not yet started are skipped, every buffer goes back to the pool, and the write fails with an
+     * IOException.
+     */
+    static class ParallelDocumentSerializer implements DocumentSerializer {
+
+        private static final int DEFAULT_CHUNK_SIZE = 4096;
+
+        private final ForkJoinPool pool;
+        private final int chunkSize;
+        private final int maxChunksAhead;
+        private final BlockingQueue<byte[]> buffers;
+
+        ParallelDocumentSerializer(ForkJoinPool pool) {
+            this(pool, DEFAULT_CHUNK_SIZE);
+        }
+
+        /**
+         * Constructor for tests ParallelDocumentSerializer.
+         *
+         * @param pool      The pool serializing the chunks.
+         * @param chunkSize The number of products per chunk.
+         */
+        ParallelDocumentSerializer(ForkJoinPool pool, int chunkSize) {
+            if (chunkSize <= 0) {
+                throw new IllegalArgumentException("Chunk size must be positive");
+            }
+
+            this.pool = pool;
+            this.chunkSize = chunkSize;
+            this.maxChunksAhead = 2 * pool.getParallelism();
+            this.buffers = new ArrayBlockingQueue<>(maxChunksAhead);
+        }
+
+        @Override
+        public byte[] toBytes(Document document) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            write(document, out);
+            return out.toByteArray();
+        }
+
+        @Override
+        public void write(Document document, OutputStream out) throws IOException {
+            List<Document.Product> products = document == null ? null : document.getProducts();
+            if (products == null || products.size() <= chunkSize) {
+                DocumentJsonWriter.write(document, out);
+                return;
+            }
+
+            DocumentJsonWriter writer = new DocumentJsonWriter(out, new byte[DocumentJsonWriter.BUFFER_SIZE]);
+            writer.writeHead(document);
+            writer.writeByte('[');
+            writer.flush();
+
+            Queue<ForkJoinTask<DocumentJsonWriter>> ahead = new ArrayDeque<>();
+            AtomicBoolean abandoned = new AtomicBoolean();
+            int next = 0;
+            try {
+                while (next < products.size() || !ahead.isEmpty()) {
+                    while (next < products.size() && ahead.size() < maxChunksAhead) {
+                        int from = next;
+                        int to = Math.min(from + chunkSize, products.size());
+                        ahead.add(pool.submit(() -> serialize(products, from, to, abandoned)));
+                        next = to;
+                    }
+
+                    DocumentJsonWriter chunk = await(ahead.remove());
+                    try {
+                        out.write(chunk.buffer, 0, chunk.position);
+                    } finally {
+                        buffers.offer(chunk.buffer);
+                    }
+                }
+            } finally {
+                if (!ahead.isEmpty()) {
+                    // Chunks not yet started are skipped; those already serialized hand back their buffers here.
+                    abandoned.set(true);
+                    for (ForkJoinTask<DocumentJsonWriter> task : ahead) {
+                        task.quietlyJoin();
+                        if (task.isCompletedNormally() && task.getRawResult() != null) {
+                            buffers.offer(task.getRawResult().buffer);
+                        }
+                    }
+                }
+            }
+
+            writer.writeByte(']');
+            writer.writeTail(document);
+            writer.flush();
+        }
+
+        /**
+         * Returns the number of buffers in the pool.
+         */
+        int pooledBuffers() {
+            return buffers.size();
+        }
+
+        /**
+         * Serializes a chunk into a pooled buffer, unless the write was abandoned before the chunk started.
+         *
+         * @return The writer holding the chunk, or null if the chunk was skipped.
+         */
+        private DocumentJsonWriter serialize(List<Document.Product> products, int from, int to,
+                                             AtomicBoolean abandoned) {
+            if (abandoned.get()) {
+                return null;
+            }
+            byte[] buffer = buffers.poll();
+            DocumentJsonWriter writer = new DocumentJsonWriter(null,
+                    buffer == null ? new byte[DocumentJsonWriter.BUFFER_SIZE] : buffer);
+            boolean serialized = false;
+            try {
+                writer.writeProducts(products, from, to);
+                serialized = true;
+            } catch (IOException e) {
+                // Not thrown: the writer has no stream.
+                throw new UncheckedIOException(e);
+            } finally {
+                if (!serialized) {
+                    buffers.offer(writer.buffer);
+                }
+            }
+            return writer;
+        }
+
+        /**
+         * Waits for a chunk and rethrows its failure as the IOException callers of a serializer expect.
+         */
+        private static DocumentJsonWriter await(ForkJoinTask<DocumentJsonWriter> task) throws IOException {
+            try {
+                return task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while serializing products");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof UncheckedIOException) {
+                    throw ((UncheckedIOException) cause).getCause();
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IOException("Failed to serialize products", cause);
+            }
+        }
+    }
+
+    /**
+     * Request body that serializes a document straight into OkHttp's sink, so a large document never exists as a
+     * JSON String or byte array: the memory needed is the serializer's buffer, whatever the number of products.
+     * A measured body knows its Content-Length, e.g. for a byte budget, at the price of one more serialization
+     * pass into a counting stream; otherwise the length is unknown and the body is sent chunked. The document must
+     * not change until it is sent.
+     */
+    static class DocumentRequestBody extends RequestBody {
+
+        private final DocumentSerializer serializer;
+        private final Document document;
+        private final boolean measured;
+        private long contentLength = -1;
+
+        /**
+         * Constructor for DocumentRequestBody.
+         *
+         * @param serializer The serializer writing the document.
+         * @param document   The document.
+         * @param measured   Whether the length is measured before sending, or the body is sent chunked.
+         */
+        DocumentRequestBody(DocumentSerializer serializer, Document document, boolean measured) {
+            this.serializer = serializer;
+            this.document = document;
+            this.measured = measured;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return JSON;
+        }
+
+        @Override
+        public long contentLength() throws IOException {
+            if (measured && contentLength < 0) {
+                CountingOutputStream counter = new CountingOutputStream();
+                serializer.write(document, counter);
+                contentLength = counter.count;
+            }
+            return contentLength;
+        }
+
+        @Override
+        public void writeTo(BufferedSink sink) throws IOException {
+            serializer.write(document, sink.outputStream());
+        }
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+    /**
+     * Reactive-streams processor that creates the documents it receives and publishes a result for each.
+     * Demand is driven by the limiters: the next document is requested from upstream only once the previous
+     * one got its permits and slot, and never while maxPending documents are held, counting those being sent
+     * and results not yet requested downstream. Memory therefore stays bounded at any input size. Results are
+     * published in completion order; a document that fails yields a failed result, not an error signal.
+     */
+    class DocumentProcessor implements Flow.Processor<SignedDocument, SubmissionResult> {
+
+        private final int maxPending;
+        private final Lock lock = new ReentrantLock();
+        private final Queue<SubmissionResult> results = new ArrayDeque<>();
+        private final AtomicInteger drainRequests = new AtomicInteger();
+        private Flow.Subscription upstream;
+        private Flow.Subscriber<? super SubmissionResult> downstream;
+        private boolean downstreamReady;
+        private long demand;
+        private int pending;
+        private boolean admitting;
+        private boolean upstreamDone;
+        private Throwable upstreamError;
+        private Throwable demandError;
+        private boolean cancelled;
+        private boolean terminated;
+
+        private DocumentProcessor(int maxPending) {
+            if (maxPending <= 0) {
+                throw new IllegalArgumentException("Max pending must be positive");
+            }
+            this.maxPending = maxPending;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            lock.lock();
+            try {
+                if (upstream != null) {
+                    subscription.cancel();
+                    return;
+                }
+                upstream = subscription;
+            } finally {
+                lock.unlock();
+            }
+            drain();
+        }
+
+        @Override
+        public void onNext(SignedDocument item) {
+            lock.lock();
+            try {
+                pending++;
+            } finally {
+                lock.unlock();
+            }
+
+            AtomicBoolean admitted = new AtomicBoolean();
+            Runnable admit = () -> {
+                if (admitted.compareAndSet(false, true)) {
+                    lock.lock();
+                    try {
+                        admitting = false;
+                    } finally {
+                        lock.unlock();
+                    }
+                    drain();
+                }
+            };
+            createDocumentAsync(item.getDocument(), item.getSignature(), admit).whenComplete((created, e) -> {
+                admit.run();
+                lock.lock();
+                try {
+                    results.add(new SubmissionResult(item, created, unwrap(e)));
+                } finally {
+                    lock.unlock();
+                }
+                drain();
+            });
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            lock.lock();
+            try {
+                upstreamDone = true;
+                upstreamError = throwable;
+            } finally {
+                lock.unlock();
+            }
+            drain();
+        }
+
+        @Override
+        public void onComplete() {
+            lock.lock();
+            try {
+                upstreamDone = true;
+            } finally {
+                lock.unlock();
+            }
+            drain();
+        }
+
+        @Override
+        public void subscribe(Flow.Subscriber<? super SubmissionResult> subscriber) {
+            lock.lock();
+            try {
+                if (downstream != null) {
+                    subscriber.onSubscribe(new Flow.Subscription() {
+                        @Override
+                        public void request(long n) {
+                        }
+
+                        @Override
+                        public void cancel() {
+                        }
+                    });
+                    subscriber.onError(new IllegalStateException("The processor takes one subscriber only"));
+                    return;
+                }
+                downstream = subscriber;
+            } finally {
+                lock.unlock();
+            }
+
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                    lock.lock();
+                    try {
+                        if (n <= 0) {
+                            demandError = new IllegalArgumentException("Demand must be positive, got " + n);
+                            cancelled = true;
+                        } else {
+                            demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                        }
+                    } finally {
+                        lock.unlock();
+                    }
+                    drain();
+                }
+
+                @Override
+                public void cancel() {
+                    lock.lock();
+                    try {
+                        cancelled = true;
+                    } finally {
+                        lock.unlock();
+                    }
+                    drain();
+                }
+            });
+            lock.lock();
+            try {
+                downstreamReady = true;
+            } finally {
+                lock.unlock();
+            }
+            drain();
+        }
+
+        /**
+         * Decides the next signals under the lock and sends them outside it. Only one thread drains at a
+         * time, so signals to either side are never concurrent.
+         */
+        private void drain() {
+            if (drainRequests.getAndIncrement() != 0) {
+                return;
+            }
+            do {
+                while (true) {
+                    SubmissionResult next = null;
+                    boolean requestNext = false;
+                    boolean cancelUpstream = false;
+                    boolean complete = false;
+                    Throwable error = null;
+                    lock.lock();
+                    try {
+                        if (terminated) {
+                            results.clear();
+                            break;
+                        }
+                        if (cancelled) {
+                            terminated = true;
+                            cancelUpstream = upstream != null && !upstreamDone;
+                            error = demandError;
+                            results.clear();
+                        } else if (downstreamReady && demand > 0 && !results.isEmpty()) {
+                            next = results.poll();
+                            pending--;
+                            if (demand != Long.MAX_VALUE) {
+                                demand--;
+                            }
+                        } else if (upstream != null && !upstreamDone && !admitting && pending < maxPending) {
+                            admitting = true;
+                            requestNext = true;
+                        } else if (downstreamReady && upstreamDone && pending == 0) {
+                            terminated = true;
+                            complete = upstreamError == null;
+                            error = upstreamError;
+                        } else {
+                            break;
+                        }
+                    } finally {
+                        lock.unlock();
+                    }
+
+                    if (cancelUpstream) {
+                        upstream.cancel();
+                    }
+                    if (next != null) {
+                        downstream.onNext(next);
+                    } else if (requestNext) {
+                        upstream.request(1);
+                    } else if (complete) {
+                        downstream.onComplete();
+                    } else if (error != null) {
+                        downstream.onError(error);
+                    }
+                }
+            } while (drainRequests.decrementAndGet() != 0);
+        }
+    }
+
+    /**
+     * A document with its signature, as submitted to a {@link DocumentProcessor}.
+     */
+    @Data
+    static class SignedDocument {
+
+        private final Document document;
+
+        private final String signature;
+    }
+
+    /**
+     * The outcome of one submitted document: the server's answer, or the error that prevented it.
+     */
+    @Data
+    static class SubmissionResult {
+
+        private final SignedDocument submitted;
+
+        private final CreateResult result;
+
+        private final Throwable error;
+
+        boolean isSuccessful() {
+            return error == null;
+        }
+    }
+
+    /**
+     * What {@link #shutdown(Duration)} did with the documents submitted before it.
+     */
+    @Data
+    static class ShutdownReport {
+
+        /**
+         * Documents that finished, successfully or not, within the drain timeout.
+         */
+        private final int drained;
+
+        /**
+         * Documents dropped while waiting for permits or a slot; their callers got an IOException.
+         */
+        private final int cancelledWaiting;
+
+        /**
+         * Documents whose requests were cancelled in flight; the server may or may not have created them.
+         */
+        private final int cancelledInFlight;
+    }
+
+    /**
+     * The server's answer to a document created by {@link #createDocumentAsync(Document, String)}.
+     */
+    @Data
+    static class CreateResult {
+
+        private final int code;
+
+        private final String body;
+    }
+
+    /**
+     * A product list for documents with up to millions of products, stored column by column instead of as a Product
+     * object with nine Strings each. Values that repeat across the products of a document (certificates, INNs and
+     * TN VED codes) are dictionary-encoded, dates are kept as epoch days, and the unique UIT and UITU codes are
+     * packed into one byte array. Set it as the products of a document: {@link DocumentJsonWriter} serializes it
+     * straight from the columns, and everything else sees Product objects created on access. Products can only be
+     * appended, and changing a product returned by get does not change the list.
+     */
+    static class CompactProductList extends AbstractList<Document.Product> implements RandomAccess {
+
+        static final int NO_DATE = Integer.MIN_VALUE;
+
+        final DictionaryColumn certificateDocument = new DictionaryColumn();
+        final DateColumn certificateDocumentDate = new DateColumn();
+        final DictionaryColumn certificateDocumentNumber = new DictionaryColumn();
+        final DictionaryColumn ownerInn = new DictionaryColumn();
+        final DictionaryColumn producerInn = new DictionaryColumn();
+        final DateColumn productionDate = new DateColumn();
+        final DictionaryColumn tnvedCode = new DictionaryColumn();
+        final TextColumn uitCode = new TextColumn();
+        final TextColumn uituCode = new TextColumn();
+        private int size;
+
+        CompactProductList() {
+        }
+
+        /**
+         * @param products The products to copy.
+         * @throws IllegalArgumentException If a date is not in the yyyy-MM-dd form.
+         */
+        CompactProductList(Collection<Document.Product> products) {
+            addAll(products);
+            trimToSize();
+        }
+
+        /**
+         * Appends a product.
+         *
+         * @param product The product.
+         * @return true.
+         * @throws IllegalArgumentException If a date is not in the yyyy-MM-dd form; nothing is added then.
+         */
+        @Override
+        public boolean add(Document.Product product) {
+            Objects.requireNonNull(product, "product");
+            int certificateDate = DateColumn.encode(product.getCertificateDocumentDate());
+            int production = DateColumn.encode(product.getProductionDate());
+
+            int row = size;
+            certificateDocument.set(row, product.getCertificateDocument());
+            certificateDocumentDate.set(row, certificateDate);
+            certificateDocumentNumber.set(row, product.getCertificateDocumentNumber());
+            ownerInn.set(row, product.getOwnerInn());
+            producerInn.set(row, product.getProducerInn());
+            productionDate.set(row, production);
+            tnvedCode.set(row, product.getTnvedCode());
+            uitCode.set(row, product.getUitCode());
+            uituCode.set(row, product.getUituCode());
+            size++;
+            modCount++;
+            return true;
+        }
+
+        @Override
+        public Document.Product get(int index) {
+            Objects.checkIndex(index, size);
+            Document.Product product = new Document.Product();
+            product.setCertificateDocument(certificateDocument.get(index));
+            product.setCertificateDocumentDate(certificateDocumentDate.get(index));
+            product.setCertificateDocumentNumber(certificateDocumentNumber.get(index));
+            product.setOwnerInn(ownerInn.get(index));
+            product.setProducerInn(producerInn.get(index));
+            product.setProductionDate(productionDate.get(index));
+            product.setTnvedCode(tnvedCode.get(index));
+            product.setUitCode(uitCode.get(index));
+            product.setUituCode(uituCode.get(index));
+            return product;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Releases the capacity kept for products that have not been added, as {@link ArrayList#trimToSize} does.
+         */
+        void trimToSize() {
+            certificateDocument.trim(size);
+            certificateDocumentDate.trim(size);
+            certificateDocumentNumber.trim(size);
+            ownerInn.trim(size);
+            producerInn.trim(size);
+            productionDate.trim(size);
+            tnvedCode.trim(size);
+            uitCode.trim(size);
+            uituCode.trim(size);
+        }
+
+        private static int capacity(int length, int needed) {
+            return Math.max(needed, Math.max(16, length + (length >> 1)));
+        }
+
+        private static int[] grow(int[] rows, int row) {
+            return row < rows.length ? rows : Arrays.copyOf(rows, capacity(rows.length, row + 1));
+        }
+
+        /**
+         * A column of values that repeat: each distinct value is stored once, with its JSON encoding. Rows hold the
+         * value's code plus one, zero being null, in a byte while there are at most 255 distinct values.
+         */
+        static final class DictionaryColumn {
+
+            private static final byte[] NULL_JSON = DocumentJsonWriter.encode(null);
+
+            private final Map<String, Integer> index = new HashMap<>();
+            private final List<String> values = new ArrayList<>();
+            private final List<byte[]> json = new ArrayList<>();
+            private byte[] narrowRows = new byte[0];
+            private int[] rows;
+
+            void set(int row, String value) {
+                int code = value == null ? 0 : index.computeIfAbsent(value, key -> {
+                    values.add(key);
+                    json.add(DocumentJsonWriter.encode(key));
+                    return values.size();
+                });
+                if (rows == null && code <= 0xFF) {
+                    if (row >= narrowRows.length) {
+                        narrowRows = Arrays.copyOf(narrowRows, capacity(narrowRows.length, row + 1));
+                    }
+                    narrowRows[row] = (byte) code;
+                    return;
+                }
+                if (rows == null) {
+                    rows = new int[Math.max(narrowRows.length, row + 1)];
+                    for (int i = 0; i < row; i++) {
+                        rows[i] = narrowRows[i] & 0xFF;
+                    }
+                    narrowRows = null;
+                }
+                rows = grow(rows, row);
+                rows[row] = code;
+            }
+
+            private int code(int row) {
+                return rows == null ? narrowRows[row] & 0xFF : rows[row];
+            }
+
+            String get(int row) {
+                int code = code(row);
+                return code == 0 ? null : values.get(code - 1);
+            }
+
+            byte[] json(int row) {
+                int code = code(row);
+                return code == 0 ? NULL_JSON : json.get(code - 1);
+            }
+
+            void trim(int size) {
+                if (rows == null) {
+                    narrowRows = Arrays.copyOf(narrowRows, size);
+                } else {
+                    rows = Arrays.copyOf(rows, size);
+                }
+            }
+        }
+
+        /**
+         * A column of yyyy-MM-dd dates, as days since the epoch.
+         */
+        static final class DateColumn {
+
+            private int[] rows = new int[0];
+
+            static int encode(String value) {
+                if (value == null) {
+                    return NO_DATE;
+                }
+
+                LocalDate date;
+                try {
+                    date = LocalDate.parse(value);
+                } catch (DateTimeParseException e) {
+                    throw new IllegalArgumentException("Not a yyyy-MM-dd date: " + value, e);
+                }
+                // Anything else would not be written back as the same string.
+                if (date.getYear() < 0 || date.getYear() > 9999 || !date.toString().equals(value)) {
+                    throw new IllegalArgumentException("Not a yyyy-MM-dd date: " + value);
+                }
+                return (int) date.toEpochDay();
+            }
+
+            void set(int row, int epochDay) {
+                rows = grow(rows, row);
+                rows[row] = epochDay;
+            }
+
+            int epochDay(int row) {
+                return rows[row];
+            }
+
+            String get(int row) {
+                return rows[row] == NO_DATE ? null : LocalDate.ofEpochDay(rows[row]).toString();
+            }
+
+            void trim(int size) {
+                rows = Arrays.copyOf(rows, size);
+            }
+        }
+
+        /**
+         * A column of mostly unique values, packed one after another into a byte array when they are ISO-8859-1, as
+         * UIT codes are. Other values are kept as Strings.
+         */
+        static final class TextColumn {
+
+            byte[] bytes = new byte[0];
+            private int length;
+            private int[] ends = new int[0];
+            private final BitSet nulls = new BitSet();
+            private Map<Integer, String> wide;
+
+            void set(int row, String value) {
+                ends = grow(ends, row);
+                if (value == null) {
+                    nulls.set(row);
+                } else if (isLatin1(value)) {
+                    if (length + value.length() > bytes.length) {
+                        bytes = Arrays.copyOf(bytes, capacity(bytes.length, length + value.length()));
+                    }
+                    for (int i = 0; i < value.length(); i++) {
+                        bytes[length++] = (byte) value.charAt(i);
+                    }
+                } else {
+                    if (wide == null) {
+                        wide = new HashMap<>();
+                    }
+                    wide.put(row, value);
+                }
+                ends[row] = length;
+            }
+
+            boolean isNull(int row) {
+                return nulls.get(row);
+            }
+
+            boolean isWide(int row) {
+                return wide != null && wide.containsKey(row);
+            }
+
+            int start(int row) {
+                return row == 0 ? 0 : ends[row - 1];
+            }
+
+            int end(int row) {
+                return ends[row];
+            }
+
+            String get(int row) {
+                if (isNull(row)) {
+                    return null;
+                }
+                if (isWide(row)) {
+                    return wide.get(row);
+                }
+                return new String(bytes, start(row), end(row) - start(row), StandardCharsets.ISO_8859_1);
+            }
+
+            void trim(int size) {
+                bytes = Arrays.copyOf(bytes, length);
+                ends = Arrays.copyOf(ends, size);
+            }
+
+            private static boolean isLatin1(String value) {
+                for (int i = 0; i < value.length(); i++) {
+                    if (value.charAt(i) > 0xFF) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        }
     }
 
     @Data
@@ -0,0 +1,326 @@
+package org.example;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.BufferedSink;
+import okio.Okio;
+import org.example.CrptApi.CompactProductList;
+import org.example.CrptApi.Document;
+import org.example.CrptApi.Document.Description;
+import org.example.CrptApi.Document.Product;
+import org.example.CrptApi.DocumentRequestBody;
+import org.example.CrptApi.DocumentSerializer;
+import org.example.CrptApi.ParallelDocumentSerializer;
+import org.example.CrptApi.RateLimiter;
+import org.example.CrptApi.SubmissionResult;
+import org.example.CrptApi.TokenBucketRateLimiter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * JMH benchmarks for CrptApi. Run with
+ * {@code mvn test-compile exec:java -Dexec.mainClass=org.example.CrptApiBenchmark -Dexec.classpathScope=test}.
+ * Comparing submissions on virtual and platform threads needs {@code -Pjdk21} and a JDK 21 runtime; on Java 17
+ * only the platform threads run.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CrptApiBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Limiters {
+
+        TokenBucketRateLimiter tokenBucket;
+
+        @Setup
+        public void setUp() {
+            // Effectively unlimited, so the benchmark measures contention on the bucket and not waiting.
+            tokenBucket = new TokenBucketRateLimiter(TimeUnit.SECONDS, Integer.MAX_VALUE);
+        }
+    }
+
+    @Benchmark
+    public boolean tokenBucketTryAcquire(Limiters limiters) {
+        return limiters.tokenBucket.tryAcquire(1);
+    }
+
+    /**
+     * 100k documents created at once with {@link CrptApi#createDocuments(Iterable, Function, ExecutorService)},
+     * on a virtual thread per submission (Java 21+, skipped by main on Java 17) or on a pool of 200 platform
+     * threads. Each submission goes the whole way through CrptApi and OkHttp's {@code Call.execute}; an
+     * interceptor stands in for the server and answers after a simulated 10 ms round trip, so no sockets are
+     * opened.
+     */
+    @State(Scope.Benchmark)
+    public static class Submissions {
+
+        static final int COUNT = 100_000;
+
+        @Param({"virtual", "platform"})
+        String threads;
+
+        ExecutorService executor;
+        CrptApi api;
+        List<Document> documents;
+
+        @Setup
+        public void setUp() {
+            executor = "virtual".equals(threads)
+                    ? CrptApi.newVirtualThreadExecutor()
+                    .orElseThrow(() -> new IllegalStateException("Virtual threads need Java 21"))
+                    : Executors.newFixedThreadPool(200);
+            OkHttpClient client = new OkHttpClient.Builder()
+                    .addInterceptor(chain -> {
+                        try {
+                            Thread.sleep(10);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new InterruptedIOException();
+                        }
+                        return new Response.Builder()
+                                .request(chain.request())
+                                .protocol(Protocol.HTTP_1_1)
+                                .code(200)
+                                .message("OK")
+                                .body(ResponseBody.create(MediaType.get("application/json; charset=utf-8"), "{}"))
+                                .build();
+                    })
+                    .build();
+            api = new CrptApi(client, new TokenBucketRateLimiter(TimeUnit.SECONDS, 1_000_000), "http://localhost");
+            documents = Collections.nCopies(COUNT, document(1));
+        }
+
+        @TearDown
+        public void tearDown() {
+            executor.shutdownNow();
+            api.shutdown();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 5)
+    public List<SubmissionResult> submissions(Submissions submissions) throws InterruptedException {
+        return submissions.api.createDocuments(submissions.documents, document -> "signature",
+                submissions.executor);
+    }
+
+    /**
+     * A typical small document: a few products with all fields set.
+     */
+    @State(Scope.Benchmark)
+    public static class Serialization {
+
+        CrptApi api;
+        CrptApi jacksonApi;
+        Document document;
+
+        @Setup
+        public void setUp() {
+            api = new CrptApi(RateLimiter.UNLIMITED);
+            jacksonApi = new CrptApi(RateLimiter.UNLIMITED, CrptApi.documentWriter(new ObjectMapper()));
+            document = document(10);
+        }
+
+        @TearDown
+        public void tearDown() {
+            api.shutdown();
+            jacksonApi.shutdown();
+        }
+    }
+
+    /**
+     * What {@code buildRequest} did before the writer was shared: a new mapper, with empty caches, per call.
+     */
+    @Benchmark
+    public byte[] serializeWithNewObjectMapper(Serialization serialization) throws IOException {
+        return new ObjectMapper().writeValueAsBytes(serialization.document);
+    }
+
+    @Benchmark
+    public byte[] serializeWithSharedWriter(Serialization serialization) throws IOException {
+        return serialization.jacksonApi.toJson(serialization.document);
+    }
+
+    @Benchmark
+    public byte[] serializeWithGeneratedWriter(Serialization serialization) throws IOException {
+        return serialization.api.toJson(serialization.document);
+    }
+
+    /**
+     * Large documents written to a sink that discards the bytes, as OkHttp writes them to the socket.
+     */
+    @State(Scope.Benchmark)
+    public static class Bodies {
+
+        @Param({"1000", "100000", "500000", "1000000"})
+        int products;
+
+        @Param({"generated", "parallel", "jackson"})
+        String json;
+
+        @Param({"list", "compact"})
+        String layout;
+
+        DocumentSerializer serializer;
+        Document document;
+        BufferedSink sink;
+
+        @Setup
+        public void setUp() {
+            switch (json) {
+                case "generated":
+                    serializer = DocumentSerializer.DEFAULT;
+                    break;
+                case "parallel":
+                    serializer = new ParallelDocumentSerializer(ForkJoinPool.commonPool());
+                    break;
+                default:
+                    serializer = DocumentSerializer.of(CrptApi.documentWriter(new ObjectMapper()));
+            }
+            document = document(products);
+            if (layout.equals("compact")) {
+                document.setProducts(new CompactProductList(document.getProducts()));
+            }
+            sink = Okio.buffer(Okio.blackhole());
+        }
+    }
+
+    /**
+     * The whole JSON as a byte array first, as for small documents.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long bufferedBody(Bodies bodies) throws IOException {
+        RequestBody body = RequestBody.create(MediaType.get("application/json; charset=utf-8"),
+                bodies.serializer.toBytes(bodies.document));
+        body.writeTo(bodies.sink);
+        return body.contentLength();
+    }
+
+    /**
+     * Counting pass for the Content-Length, then serialization straight into the sink, as with a byte budget.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long streamingBody(Bodies bodies) throws IOException {
+        RequestBody body = new DocumentRequestBody(bodies.serializer, bodies.document, true);
+        long length = body.contentLength();
+        body.writeTo(bodies.sink);
+        return length;
+    }
+
+    /**
+     * Serialization straight into the sink without a length, sent chunked when there is no byte budget.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long chunkedBody(Bodies bodies) throws IOException {
+        RequestBody body = new DocumentRequestBody(bodies.serializer, bodies.document, false);
+        body.writeTo(bodies.sink);
+        return body.contentLength();
+    }
+
+    static Document document(int products) {
+        Document document = new Document();
+        Description description = new Description();
+        description.setParticipantInn("7700000000");
+        document.setDescription(description);
+        document.setDocId("d2a4c5e1-6b6f-4f8e-9e57-0c6f1a4a2b10");
+        document.setDocStatus("NEW");
+        document.setDocType("LP_INTRODUCE_GOODS");
+        document.setImportRequest(false);
+        document.setOwnerInn("7700000000");
+        document.setParticipantInn("7700000000");
+        document.setProducerInn("7800000000");
+        document.setProductionDate("2024-03-01");
+        document.setProductionType("OWN_PRODUCTION");
+        document.setRegDate("2024-03-02");
+        document.setRegNumber("R-000123");
+
+        List<Product> list = new ArrayList<>(products);
+        for (int i = 0; i < products; i++) {
+            Product product = new Product();
+            product.setCertificateDocument("CONFORMITY_CERTIFICATE");
+            product.setCertificateDocumentDate("2024-01-15");
+            product.setCertificateDocumentNumber("RU C-RU.AB12.B.00123/24");
+            product.setOwnerInn("7700000000");
+            product.setProducerInn("7800000000");
+            product.setProductionDate("2024-03-01");
+            product.setTnvedCode("6403990000");
+            product.setUitCode(String.format("0104600000000000215%011d", i));
+            product.setUituCode(null);
+            list.add(product);
+        }
+        document.setProducts(list);
+        return document;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        for (int threads : new int[]{1, 8, 64, 128}) {
+            new Runner(new OptionsBuilder()
+                    .include(CrptApiBenchmark.class.getSimpleName() + ".tokenBucket")
+                    .threads(threads)
+                    .build()).run();
+        }
+        // Virtual threads need a Java 21 runtime; on Java 17 only the platform threads are measured.
+        Optional<ExecutorService> virtualThreads = CrptApi.newVirtualThreadExecutor();
+        virtualThreads.ifPresent(ExecutorService::shutdown);
+        new Runner(new OptionsBuilder()
+                .include(CrptApiBenchmark.class.getSimpleName() + ".submissions")
+                .param("threads", virtualThreads.isPresent()
+                        ? new String[]{"virtual", "platform"}
+                        : new String[]{"platform"})
+                .build()).run();
+        // The gc profiler reports the bytes allocated per call next to the throughput.
+        new Runner(new OptionsBuilder()
+                .include(CrptApiBenchmark.class.getSimpleName() + ".serializeWith")
+                .addProfiler("gc")
+                .build()).run();
+        // Allocation per call stays flat for the streaming and chunked bodies; for the buffered one it grows with
+        // the document. The chunked body shows what skipping the counting pass saves.
+        new Runner(new OptionsBuilder()
+                .include(CrptApiBenchmark.class.getSimpleName() + ".(buffered|streaming|chunked)Body")
+                .addProfiler("gc")
+                .jvmArgsAppend("-Xmx4g")
+                .build()).run();
+    }
+}
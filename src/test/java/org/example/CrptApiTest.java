@@ -1,29 +1,89 @@
 package org.example;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
 import okhttp3.OkHttpClient;
 import okhttp3.mockwebserver.MockResponse;
 import okhttp3.mockwebserver.MockWebServer;
 import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+import org.example.CrptApi.AdaptiveRateLimiter;
+import org.example.CrptApi.CompactProductList;
+import org.example.CrptApi.CreateResult;
 import org.example.CrptApi.Document;
 import org.example.CrptApi.Document.Description;
 import org.example.CrptApi.Document.Product;
+import org.example.CrptApi.DocumentProcessor;
+import org.example.CrptApi.DocumentJsonWriter;
+import org.example.CrptApi.DocumentRequestBody;
+import org.example.CrptApi.DocumentSerializer;
+import org.example.CrptApi.GcraRateLimiter;
+import org.example.CrptApi.Lease;
+import org.example.CrptApi.LeasingRateLimiter;
+import org.example.CrptApi.LocalTokenServer;
+import org.example.CrptApi.MultiWindowRateLimiter;
+import org.example.CrptApi.MultiWindowRateLimiter.Window;
+import org.example.CrptApi.ParallelDocumentSerializer;
+import org.example.CrptApi.RateLimitConfigWatcher;
+import org.example.CrptApi.RateLimiter;
+import org.example.CrptApi.RateLimiterRegistry;
+import org.example.CrptApi.RateLimiterStatePersister;
+import org.example.CrptApi.ReconfigurableRateLimiter;
+import org.example.CrptApi.SharedMemoryRateLimiter;
+import org.example.CrptApi.ShutdownReport;
+import org.example.CrptApi.SignedDocument;
+import org.example.CrptApi.SlidingWindowRateLimiter;
+import org.example.CrptApi.SubmissionResult;
+import org.example.CrptApi.TokenServer;
+import org.example.CrptApi.VegasConcurrencyLimiter;
+import org.example.CrptApi.WarmupRateLimiter;
+import org.example.CrptApi.WeightedFairQueue;
+import org.example.CrptApi.TokenBucketRateLimiter;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.*;
 
 public class CrptApiTest {
 
-    private ScheduledExecutorService mockScheduler;
-    private Semaphore mockSemaphore;
+    private RateLimiter mockRateLimiter;
     private CrptApi crptApi;
     private MockWebServer mockWebServer;
     private String signature;
@@ -32,14 +92,14 @@ public class CrptApiTest {
     @BeforeEach
     public void setUp() throws Exception {
         OkHttpClient realClient = new OkHttpClient();
-        mockScheduler = mock(ScheduledExecutorService.class);
-        mockSemaphore = mock(Semaphore.class);
+        mockRateLimiter = mock(RateLimiter.class);
+        // A mock answers 0 instead of running the default method, and no document fits into 0 permits.
+        when(mockRateLimiter.maxPermits()).thenReturn(Integer.MAX_VALUE);
         mockWebServer = new MockWebServer();
         mockWebServer.start();
 
         String mockBaseUrl = mockWebServer.url("").toString();
-        crptApi = new CrptApi(realClient, mockScheduler, mockSemaphore, TimeUnit.SECONDS, 5,
-                mockBaseUrl);
+        crptApi = new CrptApi(realClient, mockRateLimiter, mockBaseUrl);
 
         document = new Document();
         document.setDescription(new Description());
@@ -80,23 +140,1293 @@ public class CrptApiTest {
         assertEquals("application/json; charset=utf-8", recordedRequest.getHeader("Content-Type"));
         assertEquals(signature, recordedRequest.getHeader("Signature"));
 
-        verify(mockSemaphore, times(1)).acquire();
-        verify(mockSemaphore, times(1)).release();
+        verify(mockRateLimiter, times(1)).acquire(1);
     }
 
     @Test
-    public void testConstructorInitializesCorrectly() {
-        verify(mockScheduler, times(1)).scheduleAtFixedRate(any(Runnable.class), eq(0L), anyLong(),
-                eq(TimeUnit.MILLISECONDS));
+    public void testConstructorRejectsNonPositiveLimit() {
+        assertThrows(IllegalArgumentException.class, () -> new CrptApi(TimeUnit.SECONDS, 0));
     }
 
 
     @Test
     public void testShutdown() {
         crptApi.shutdown();
-        verify(mockScheduler, times(1)).shutdown();
+        verifyNoInteractions(mockRateLimiter);
     }
 
+    @Test
+    public void testTokenBucketRefillsLazily() {
+        AtomicLong clock = new AtomicLong();
+        TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(TimeUnit.SECONDS, 5, clock::get);
 
-}
+        for (int i = 0; i < 5; i++) {
+            assertTrue(limiter.tryAcquire(1));
+        }
+        assertFalse(limiter.tryAcquire(1));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(200), limiter.reserve(1, Long.MAX_VALUE));
+
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(400));
+        assertTrue(limiter.tryAcquire(1));
+        assertFalse(limiter.tryAcquire(1));
+    }
+
+    @Test
+    public void testTokenBucketUnderContention() throws InterruptedException {
+        int threads = 128;
+        TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(TimeUnit.SECONDS, 1000);
+        AtomicLong granted = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(300);
+
+        for (int i = 0; i < threads; i++) {
+            new Thread(() -> {
+                try {
+                    start.await();
+                    while (System.nanoTime() < deadline) {
+                        if (limiter.tryAcquire(1)) {
+                            granted.incrementAndGet();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin);
+        assertTrue(granted.get() <= 1000 + elapsedMillis + 1, "granted " + granted.get());
+    }
+
+    @Test
+    public void testSlidingWindowWorksForSubSecondUnits() {
+        AtomicLong clock = new AtomicLong();
+        SlidingWindowRateLimiter limiter = new SlidingWindowRateLimiter(TimeUnit.MILLISECONDS, 2, clock::get);
+
+        assertTrue(limiter.tryAcquire(1));
+        clock.addAndGet(TimeUnit.MICROSECONDS.toNanos(600));
+        assertTrue(limiter.tryAcquire(1));
+        assertEquals(TimeUnit.MICROSECONDS.toNanos(400), limiter.reserve(1, Long.MAX_VALUE));
+        assertEquals(TimeUnit.MICROSECONDS.toNanos(1000), limiter.reserve(1, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testSlidingWindowNeverExceedsLimitInAnyWindow() throws InterruptedException {
+        int limit = 10;
+        int threads = 64;
+        int perThread = 20;
+        long window = TimeUnit.SECONDS.toNanos(1);
+        // A frozen clock makes every grant time exactly the returned wait.
+        SlidingWindowRateLimiter limiter = new SlidingWindowRateLimiter(TimeUnit.SECONDS, limit, () -> 0L);
+        long[] grants = new long[threads * perThread];
+        AtomicInteger index = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(threads);
+
+        for (int i = 0; i < threads; i++) {
+            new Thread(() -> {
+                for (int j = 0; j < perThread; j++) {
+                    grants[index.getAndIncrement()] = limiter.reserve(1, Long.MAX_VALUE);
+                }
+                done.countDown();
+            }).start();
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+
+        Arrays.sort(grants);
+        for (int i = limit; i < grants.length; i++) {
+            assertTrue(grants[i] - grants[i - limit] >= window, "more than " + limit + " grants in one window");
+        }
+    }
+
+    @Test
+    public void testGcraSpacesPermitsAfterBurst() {
+        AtomicLong clock = new AtomicLong();
+        GcraRateLimiter limiter = new GcraRateLimiter(TimeUnit.SECONDS, 10, 2, clock::get);
+        long interval = TimeUnit.MILLISECONDS.toNanos(100);
+
+        assertTrue(limiter.tryAcquire(1));
+        assertTrue(limiter.tryAcquire(1));
+        assertEquals(interval, limiter.waitNanos(1));
+        assertEquals(-1, limiter.reserve(1, interval - 1));
+        assertEquals(interval, limiter.reserve(1, interval));
+        assertEquals(2 * interval, limiter.waitNanos(1));
+
+        clock.addAndGet(2 * interval);
+        assertEquals(0, limiter.waitNanos(1));
+        assertTrue(limiter.tryAcquire(1));
+        assertFalse(limiter.tryAcquire(1));
+    }
+
+    @Test
+    public void testRegistryKeepsKeysIndependentAndEvictsIdleOnes() {
+        AtomicLong clock = new AtomicLong();
+        RateLimiterRegistry registry = new RateLimiterRegistry(
+                key -> new TokenBucketRateLimiter(TimeUnit.SECONDS, 1, clock::get), Duration.ofSeconds(10), clock::get);
+
+        RateLimiter first = registry.forKey("1234567890");
+        assertTrue(first.tryAcquire(1));
+        assertFalse(registry.forKey("1234567890").tryAcquire(1));
+        assertTrue(registry.forKey("0987654321").tryAcquire(1));
+        assertSame(first, registry.forKey("1234567890"));
+        assertEquals(2, registry.size());
+
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(5));
+        registry.forKey("1234567890");
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(6));
+        registry.forKey("1234567890");
+        assertEquals(1, registry.size());
+
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(11));
+        assertNotSame(first, registry.forKey("0987654321"));
+        assertNotSame(first, registry.forKey("1234567890"));
+    }
+
+    @Test
+    public void testCreateDocumentUsesLimiterOfTenant() throws IOException, InterruptedException {
+        RateLimiter tenantLimiter = mock(RateLimiter.class);
+        when(tenantLimiter.maxPermits()).thenReturn(Integer.MAX_VALUE);
+        RateLimiterRegistry registry = new RateLimiterRegistry(key -> tenantLimiter, Duration.ofMinutes(1));
+        mockWebServer.enqueue(new MockResponse());
+
+        try (CrptApi tenantApi = new CrptApi(new OkHttpClient(), registry, Document::getParticipantInn,
+                mockWebServer.url("").toString())) {
+            tenantApi.createDocument(document, signature);
+        }
+
+        verify(tenantLimiter, times(1)).acquire(1);
+    }
+
+    @Test
+    public void testSharedMemoryLimitHoldsAcrossProcesses() throws Exception {
+        int processes = 3;
+        int requestLimit = 100;
+        int burst = 10;
+        long runMillis = 1500;
+        Path stateFile = Files.createTempFile("crpt-rate", ".bin");
+        // Every worker starts at the same wall-clock time, after all JVMs are up.
+        long startAt = System.currentTimeMillis() + 3000;
+
+        List<Process> workers = new ArrayList<>();
+        for (int i = 0; i < processes; i++) {
+            workers.add(new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                    "-cp", System.getProperty("java.class.path"), SharedMemoryWorker.class.getName(),
+                    stateFile.toString(), String.valueOf(requestLimit), String.valueOf(burst),
+                    String.valueOf(startAt), String.valueOf(runMillis))
+                    .redirectErrorStream(true)
+                    .start());
+        }
+
+        long total = 0;
+        for (Process worker : workers) {
+            assertTrue(worker.waitFor(30, TimeUnit.SECONDS));
+            String output = new String(worker.getInputStream().readAllBytes()).trim();
+            assertEquals(0, worker.exitValue(), output);
+            total += Long.parseLong(output.substring(output.lastIndexOf('\n') + 1).trim());
+        }
+        Files.delete(stateFile);
+
+        long allowed = burst + requestLimit * runMillis / 1000 + 1;
+        assertTrue(total <= allowed, total + " permits granted, " + allowed + " allowed");
+        assertTrue(total >= allowed / 2, "only " + total + " permits granted");
+    }
+
+    @Test
+    public void testSharedMemoryRejectsOtherConfiguration() throws IOException {
+        Path stateFile = Files.createTempFile("crpt-rate", ".bin");
+        SharedMemoryRateLimiter limiter = new SharedMemoryRateLimiter(stateFile, TimeUnit.SECONDS, 100, 2);
+        assertTrue(limiter.tryAcquire(2));
+        try (SharedMemoryRateLimiter other = new SharedMemoryRateLimiter(stateFile, TimeUnit.SECONDS, 100, 2)) {
+            assertFalse(other.tryAcquire(1));
+        }
+        assertThrows(IOException.class, () -> new SharedMemoryRateLimiter(stateFile, TimeUnit.SECONDS, 50, 2));
+        assertThrows(IOException.class, () -> new SharedMemoryRateLimiter(stateFile, TimeUnit.SECONDS, 100, 5));
+
+        limiter.close();
+        assertThrows(IllegalStateException.class, () -> limiter.tryAcquire(1));
+        Files.delete(stateFile);
+    }
+
+    /**
+     * Worker process for {@link #testSharedMemoryLimitHoldsAcrossProcesses()}: spins on tryAcquire for the
+     * given time and prints how many permits it got.
+     */
+    public static class SharedMemoryWorker {
+
+        public static void main(String[] args) throws Exception {
+            long startAt = Long.parseLong(args[3]);
+            long endAt = startAt + Long.parseLong(args[4]);
+            long granted = 0;
+            try (SharedMemoryRateLimiter limiter = new SharedMemoryRateLimiter(Paths.get(args[0]), TimeUnit.SECONDS,
+                    Integer.parseInt(args[1]), Integer.parseInt(args[2]))) {
+                Thread.sleep(Math.max(0, startAt - System.currentTimeMillis()));
+                while (System.currentTimeMillis() < endAt) {
+                    if (limiter.tryAcquire(1)) {
+                        granted++;
+                    }
+                }
+            }
+            System.out.println(granted);
+        }
+    }
+
+    @Test
+    public void testLeasingSharesClusterQuotaAndFallsBack() throws IOException {
+        AtomicLong clock = new AtomicLong();
+        LocalTokenServer localServer = new LocalTokenServer(TimeUnit.SECONDS, 10, Duration.ofSeconds(1), clock::get);
+        AtomicInteger leases = new AtomicInteger();
+        AtomicInteger returned = new AtomicInteger();
+        AtomicLong serverUp = new AtomicLong(1);
+        TokenServer server = new TokenServer() {
+            @Override
+            public Lease lease(String nodeId, int permits, long maxWaitNanos) throws IOException {
+                if (serverUp.get() == 0) {
+                    throw new IOException("connection refused");
+                }
+                leases.incrementAndGet();
+                return localServer.lease(nodeId, permits, maxWaitNanos);
+            }
+
+            @Override
+            public void release(String nodeId, Lease lease, int unusedPermits) {
+                returned.addAndGet(unusedPermits);
+                localServer.release(nodeId, lease, unusedPermits);
+            }
+        };
+        TokenBucketRateLimiter fallback = new TokenBucketRateLimiter(TimeUnit.SECONDS, 1, clock::get);
+        LeasingRateLimiter nodeA = new LeasingRateLimiter(server, "a", 4, fallback, Duration.ofSeconds(5), clock::get);
+        LeasingRateLimiter nodeB = new LeasingRateLimiter(server, "b", 4, fallback, Duration.ofSeconds(5), clock::get);
+
+        int granted = 0;
+        for (int i = 0; i < 20; i++) {
+            granted += nodeA.tryAcquire(1) ? 1 : 0;
+            granted += nodeB.tryAcquire(1) ? 1 : 0;
+        }
+        assertEquals(10, granted);
+        assertTrue(leases.get() <= 6, leases.get() + " round trips");
+
+        nodeA.close();
+        nodeB.close();
+        assertEquals(0, returned.get());
+
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        assertTrue(nodeA.tryAcquire(1));
+        nodeA.close();
+        assertEquals(3, returned.get());
+        assertTrue(nodeB.tryAcquire(4));
+
+        serverUp.set(0);
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(2));
+        assertTrue(nodeA.tryAcquire(1));
+        assertFalse(nodeA.tryAcquire(1));
+    }
+
+    @Test
+    public void testBlockingAcquireWaitsOutEmptyLeases() throws IOException, InterruptedException {
+        AtomicInteger leases = new AtomicInteger();
+        TokenServer server = new TokenServer() {
+            @Override
+            public Lease lease(String nodeId, int permits, long maxWaitNanos) {
+                // The server may grant nothing, even to a node willing to wait forever.
+                return leases.incrementAndGet() < 3
+                        ? new Lease(0, 0, TimeUnit.MILLISECONDS.toNanos(5), 0)
+                        : new Lease(1, permits, 0, TimeUnit.SECONDS.toNanos(1));
+            }
+
+            @Override
+            public void release(String nodeId, Lease lease, int unusedPermits) {
+            }
+        };
+        LeasingRateLimiter limiter = new LeasingRateLimiter(server, "a", 4, RateLimiter.UNLIMITED,
+                Duration.ofSeconds(5));
+
+        limiter.acquire(1);
+        assertEquals(3, leases.get());
+        assertEquals(0, limiter.reserve(3, 0));
+        limiter.close();
+    }
+
+    @Test
+    public void testLeasingLimiterPredictsWaitAfterEmptyLease() throws IOException {
+        AtomicLong clock = new AtomicLong();
+        AtomicInteger leases = new AtomicInteger();
+        TokenServer server = new TokenServer() {
+            @Override
+            public Lease lease(String nodeId, int permits, long maxWaitNanos) {
+                leases.incrementAndGet();
+                return new Lease(0, 0, TimeUnit.SECONDS.toNanos(2), 0);
+            }
+
+            @Override
+            public void release(String nodeId, Lease lease, int unusedPermits) {
+            }
+        };
+        LeasingRateLimiter limiter = new LeasingRateLimiter(server, "a", 4, RateLimiter.UNLIMITED,
+                Duration.ofSeconds(5), clock::get);
+        assertEquals(0, limiter.waitNanos(1));
+
+        assertEquals(-1, limiter.reserve(1, TimeUnit.SECONDS.toNanos(1)));
+        assertEquals(TimeUnit.SECONDS.toNanos(2), limiter.waitNanos(1));
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        assertEquals(TimeUnit.SECONDS.toNanos(1), limiter.waitNanos(1));
+        assertEquals(1, leases.get());
+
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        assertEquals(0, limiter.waitNanos(1));
+        limiter.close();
+    }
+
+    @Test
+    public void testAdaptiveLimiterBacksOffAndProbesUp() {
+        AtomicLong clock = new AtomicLong();
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(TimeUnit.SECONDS, 8, 1, 0.5, 1, 1, clock::get);
+
+        limiter.onResponse(429, TimeUnit.SECONDS.toNanos(2));
+        limiter.onResponse(429, 0);
+        assertEquals(4.0, limiter.currentLimit(), 1e-9);
+        assertEquals(TimeUnit.SECONDS.toNanos(2), limiter.waitNanos(1));
+
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        limiter.onResponse(503, 0);
+        assertEquals(2.0, limiter.currentLimit(), 1e-9);
+
+        // Client errors and redirects say nothing about the server's capacity.
+        for (int code : new int[]{301, 400, 401, 403, 404, 500}) {
+            limiter.onResponse(code, 0);
+        }
+        assertEquals(2.0, limiter.currentLimit(), 1e-9);
+        for (int i = 0; i < 2; i++) {
+            limiter.onResponse(200, 0);
+        }
+        assertEquals(2.9, limiter.currentLimit(), 1e-9);
+        for (int i = 0; i < 100; i++) {
+            limiter.onResponse(200, 0);
+        }
+        assertEquals(8.0, limiter.currentLimit(), 1e-9);
+    }
+
+    @Test
+    public void testAdaptiveLimiterPausesBurstForRetryAfter() {
+        AtomicLong clock = new AtomicLong();
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(TimeUnit.SECONDS, 10, 1, 0.5, 1, 3, clock::get);
+
+        limiter.onResponse(429, TimeUnit.SECONDS.toNanos(2));
+        assertEquals(5.0, limiter.currentLimit(), 1e-9);
+        assertEquals(TimeUnit.SECONDS.toNanos(2), limiter.waitNanos(1));
+        assertEquals(-1, limiter.reserve(1, 0));
+
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(2) - 1);
+        assertEquals(-1, limiter.reserve(1, 0));
+        clock.incrementAndGet();
+        assertEquals(0, limiter.reserve(1, 0));
+        // The burst does not come back at once after the pause: the rest follow at the lowered rate.
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(200), limiter.waitNanos(1));
+    }
+
+    @Test
+    public void testCreateDocumentReportsThrottlingToLimiter() {
+        mockWebServer.enqueue(new MockResponse().setResponseCode(429).addHeader("Retry-After", "3"));
+
+        assertThrows(IOException.class, () -> crptApi.createDocument(document, signature));
+
+        verify(mockRateLimiter, times(1)).onResponse(429, TimeUnit.SECONDS.toNanos(3));
+    }
+
+    @Test
+    public void testFairQueueServesSmallFlowAheadOfBacklog() throws InterruptedException {
+        CountDownLatch backlogQueued = new CountDownLatch(1);
+        RateLimiter delegate = new RateLimiter() {
+            private final AtomicInteger calls = new AtomicInteger();
+
+            @Override
+            public long reserve(int permits, long maxWaitNanos) {
+                if (calls.getAndIncrement() == 0) {
+                    try {
+                        backlogQueued.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return 0;
+            }
+
+            @Override
+            public long waitNanos(int permits) {
+                return 0;
+            }
+        };
+        WeightedFairQueue fairQueue = new WeightedFairQueue(delegate, Map.of("LP_INTRODUCE_GOODS", 1, "LP_SHIP_GOODS", 2));
+        List<String> served = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> callers = new ArrayList<>();
+
+        Thread first = startCaller(fairQueue, "LP_INTRODUCE_GOODS", served);
+        callers.add(first);
+        while (first.getState() != Thread.State.WAITING) {
+            Thread.sleep(1);
+        }
+        for (int i = 0; i < 200; i++) {
+            callers.add(startCaller(fairQueue, "LP_INTRODUCE_GOODS", served));
+        }
+        while (fairQueue.queued() < 200) {
+            Thread.sleep(1);
+        }
+        for (int i = 0; i < 20; i++) {
+            callers.add(startCaller(fairQueue, "LP_SHIP_GOODS", served));
+        }
+        while (fairQueue.queued() < 220) {
+            Thread.sleep(1);
+        }
+        backlogQueued.countDown();
+        for (Thread caller : callers) {
+            caller.join(10_000);
+        }
+
+        assertEquals(221, served.size());
+        // With twice the weight the small flow gets two of every three turns, so it is done within ~30 turns.
+        assertEquals(20, served.subList(0, 35).stream().filter("LP_SHIP_GOODS"::equals).count(), served.toString());
+    }
+
+    private static Thread startCaller(WeightedFairQueue fairQueue, String flow, List<String> served) {
+        Thread caller = new Thread(() -> {
+            try {
+                fairQueue.forFlow(flow).acquire(1);
+                served.add(flow);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        caller.start();
+        return caller;
+    }
+
+    @Test
+    public void testTryCreateDocumentRejectsWithoutQueuing() throws IOException {
+        mockWebServer.enqueue(new MockResponse());
+
+        try (CrptApi pacedApi = new CrptApi(new OkHttpClient(), new GcraRateLimiter(TimeUnit.MINUTES, 1, 1),
+                mockWebServer.url("").toString())) {
+            assertTrue(pacedApi.tryCreateDocument(document, signature, Duration.ofSeconds(2)));
+            long startedAt = System.nanoTime();
+            assertFalse(pacedApi.tryCreateDocument(document, signature, Duration.ofSeconds(2)));
+            assertFalse(pacedApi.tryCreateDocument(document, signature, Instant.now().minusSeconds(1)));
+
+            assertTrue(System.nanoTime() - startedAt < TimeUnit.SECONDS.toNanos(1));
+        }
+        assertEquals(1, mockWebServer.getRequestCount());
+    }
+
+    @Test
+    public void testFairQueueDropsCallerPastDeadline() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        RateLimiter delegate = new RateLimiter() {
+            @Override
+            public long reserve(int permits, long maxWaitNanos) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return 0;
+            }
+
+            @Override
+            public long waitNanos(int permits) {
+                return 0;
+            }
+        };
+        WeightedFairQueue fairQueue = new WeightedFairQueue(delegate, Map.of());
+        Thread holder = startCaller(fairQueue, "LP_INTRODUCE_GOODS", new ArrayList<>());
+        while (holder.getState() != Thread.State.WAITING) {
+            Thread.sleep(1);
+        }
+
+        assertFalse(fairQueue.forFlow("LP_SHIP_GOODS").tryAcquire(1, TimeUnit.MILLISECONDS.toNanos(50)));
+        release.countDown();
+        holder.join(10_000);
+        assertEquals(0, fairQueue.queued());
+        assertTrue(fairQueue.forFlow("LP_SHIP_GOODS").tryAcquire(1, TimeUnit.MILLISECONDS.toNanos(50)));
+    }
+
+    @Test
+    public void testFairQueuePredictsWaitBehindQueuedCallers() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        RateLimiter delegate = new RateLimiter() {
+            @Override
+            public long reserve(int permits, long maxWaitNanos) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return 0;
+            }
+
+            @Override
+            public long waitNanos(int permits) {
+                return TimeUnit.MILLISECONDS.toNanos(100) * permits;
+            }
+        };
+        WeightedFairQueue fairQueue = new WeightedFairQueue(delegate, Map.of());
+        List<Thread> callers = new ArrayList<>();
+        callers.add(startCaller(fairQueue, "LP_INTRODUCE_GOODS", new ArrayList<>()));
+        while (callers.get(0).getState() != Thread.State.WAITING) {
+            Thread.sleep(1);
+        }
+        for (int i = 0; i < 20; i++) {
+            callers.add(startCaller(fairQueue, "LP_INTRODUCE_GOODS", new ArrayList<>()));
+        }
+        while (fairQueue.queued() < 20) {
+            Thread.sleep(1);
+        }
+
+        // 20 permits queued ahead: the caller is rejected at once instead of parking until its deadline.
+        RateLimiter flow = fairQueue.forFlow("LP_SHIP_GOODS");
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(2100), flow.waitNanos(1));
+        long startedAt = System.nanoTime();
+        assertFalse(flow.tryAcquire(1, TimeUnit.SECONDS.toNanos(1)));
+        assertTrue(System.nanoTime() - startedAt < TimeUnit.MILLISECONDS.toNanos(500));
+
+        release.countDown();
+        for (Thread caller : callers) {
+            caller.join(10_000);
+        }
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(100), flow.waitNanos(1));
+
+        // Behind a queue deeper than the window, the wait grows by a window per window of queued permits.
+        AtomicLong clock = new AtomicLong();
+        SlidingWindowRateLimiter window = new SlidingWindowRateLimiter(TimeUnit.SECONDS, 2, clock::get);
+        assertTrue(window.tryAcquire(2));
+        WeightedFairQueue windowQueue = new WeightedFairQueue(window, Map.of());
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            for (int i = 0; i < 5; i++) {
+                windowQueue.forFlow("LP_INTRODUCE_GOODS").acquireAsync(1, scheduler);
+            }
+            // One waiter holds the permit granted at 1 s; the four queued get 1 s, 2 s, 2 s and 3 s.
+            RateLimiter windowFlow = windowQueue.forFlow("LP_SHIP_GOODS");
+            assertEquals(TimeUnit.SECONDS.toNanos(3), windowFlow.waitNanos(1));
+            assertFalse(windowFlow.tryAcquire(1, TimeUnit.MILLISECONDS.toNanos(2500)));
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testWarmupRampsRateOnVirtualClock() {
+        AtomicLong clock = new AtomicLong();
+        WarmupRateLimiter limiter = new WarmupRateLimiter(TimeUnit.SECONDS, 10, 2, Duration.ofSeconds(4), 1,
+                clock::get);
+
+        List<Long> grants = new ArrayList<>();
+        long step = TimeUnit.MILLISECONDS.toNanos(1);
+        while (clock.get() < TimeUnit.SECONDS.toNanos(6)) {
+            if (limiter.tryAcquire(1)) {
+                grants.add(clock.get());
+            }
+            clock.addAndGet(step);
+        }
+
+        // Cold: 2 per second. Warm: 10 per second. The ramp lies in between.
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(500), grants.get(1) - grants.get(0));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(100), grants.get(grants.size() - 1) - grants.get(grants.size() - 2));
+        assertEquals(3, grants.stream().filter(grant -> grant <= TimeUnit.SECONDS.toNanos(1)).count());
+        assertTrue(grants.size() > 2 * 6 && grants.size() < 10 * 6, grants.size() + " grants");
+
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(10));
+        assertTrue(limiter.tryAcquire(1));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(500), limiter.waitNanos(1));
+    }
+
+    @Test
+    public void testMultiWindowEnforcesEveryQuota() {
+        AtomicLong clock = new AtomicLong(TimeUnit.DAYS.toNanos(20_000));
+        MultiWindowRateLimiter limiter = new MultiWindowRateLimiter(
+                List.of(Window.fixed(Duration.ofSeconds(1), 2), Window.fixed(Duration.ofDays(1), 5)), clock::get);
+        // A prediction may ask for more than a window holds, e.g. for a whole queue; a reservation may not.
+        assertEquals(TimeUnit.DAYS.toNanos(1), limiter.waitNanos(7));
+        assertEquals(TimeUnit.SECONDS.toNanos(2), limiter.waitNanos(5));
+        assertThrows(IllegalArgumentException.class, () -> limiter.reserve(3, Long.MAX_VALUE));
+
+        assertTrue(limiter.tryAcquire(1));
+        assertTrue(limiter.tryAcquire(1));
+        assertEquals(TimeUnit.SECONDS.toNanos(1), limiter.waitNanos(1));
+        assertEquals(3, limiter.remaining(1));
+
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        assertTrue(limiter.tryAcquire(2));
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        assertTrue(limiter.tryAcquire(1));
+        assertEquals(1, limiter.remaining(0));
+        assertEquals(0, limiter.remaining(1));
+        assertFalse(limiter.tryAcquire(1));
+        assertEquals(TimeUnit.DAYS.toNanos(1) - TimeUnit.SECONDS.toNanos(2), limiter.waitNanos(1));
+
+        clock.addAndGet(TimeUnit.DAYS.toNanos(1));
+        assertEquals(5, limiter.remaining(1));
+        assertTrue(limiter.tryAcquire(1));
+    }
+
+    @Test
+    public void testMultiWindowUnderContention() throws InterruptedException {
+        MultiWindowRateLimiter limiter = new MultiWindowRateLimiter(
+                List.of(Window.smooth(Duration.ofSeconds(1), 50, 50), Window.fixed(Duration.ofDays(1), 1000)),
+                () -> 0L);
+        AtomicLong granted = new AtomicLong();
+        CountDownLatch done = new CountDownLatch(16);
+
+        for (int i = 0; i < 16; i++) {
+            new Thread(() -> {
+                for (int j = 0; j < 1000; j++) {
+                    if (limiter.tryAcquire(1)) {
+                        granted.incrementAndGet();
+                    }
+                }
+                done.countDown();
+            }).start();
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+
+        // A lost race can leave the smooth window over-charged, never under-charged.
+        assertTrue(granted.get() <= 50 && granted.get() >= 40, granted.get() + " granted");
+        assertEquals(1000 - granted.get(), limiter.remaining(1));
+    }
+
+    @Test
+    public void testCreateDocumentChargesCostAndBytes() throws IOException, InterruptedException {
+        RateLimiter byteRateLimiter = mock(RateLimiter.class);
+        when(byteRateLimiter.maxPermits()).thenReturn(Integer.MAX_VALUE);
+        Product product = new Product();
+        product.setUitCode("x".repeat(3000));
+        document.setProducts(List.of(product, new Product(), new Product()));
+        mockWebServer.enqueue(new MockResponse());
+
+        try (CrptApi weightedApi = new CrptApi(new OkHttpClient(), mockRateLimiter, CrptApi::productCount,
+                byteRateLimiter, mockWebServer.url("").toString())) {
+            weightedApi.createDocument(document, signature);
+        }
+
+        long bodySize = mockWebServer.takeRequest().getBodySize();
+        verify(mockRateLimiter, times(1)).acquire(3);
+        verify(byteRateLimiter, times(1)).acquire((int) ((bodySize + 1023) / 1024));
+        assertTrue(bodySize > 3000);
+    }
+
+    @Test
+    public void testCreateDocumentRejectsCostOutOfRange() throws Exception {
+        SlidingWindowRateLimiter limiter = new SlidingWindowRateLimiter(TimeUnit.SECONDS, 5);
+        for (int cost : new int[]{0, -1, 6}) {
+            try (CrptApi weightedApi = new CrptApi(new OkHttpClient(), limiter, ignored -> cost,
+                    RateLimiter.UNLIMITED, mockWebServer.url("").toString())) {
+                assertThrows(IOException.class, () -> weightedApi.createDocument(document, signature));
+                assertThrows(IOException.class,
+                        () -> weightedApi.tryCreateDocument(document, signature, Duration.ofSeconds(1)));
+                ExecutionException asyncFailure = assertThrows(ExecutionException.class,
+                        () -> weightedApi.createDocumentAsync(document, signature).get(5, TimeUnit.SECONDS));
+                assertTrue(asyncFailure.getCause() instanceof IOException);
+            }
+        }
+
+        // Nothing was charged: a negative cost must not give permits back.
+        assertTrue(limiter.tryAcquire(5));
+        assertFalse(limiter.tryAcquire(1));
+        assertEquals(0, mockWebServer.getRequestCount());
+    }
+
+    @Test
+    public void testLimiterStateSurvivesRestart() throws IOException {
+        Path stateFile = Files.createTempFile("crpt-state", ".bin");
+        Files.delete(stateFile);
+        TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(TimeUnit.MINUTES, 5, () -> 1_000_000_000_000L);
+        RateLimiterStatePersister persister = new RateLimiterStatePersister(stateFile, limiter, Duration.ofMinutes(1));
+        assertTrue(limiter.tryAcquire(5));
+        persister.close();
+
+        // The restarted process has another nanoTime origin; the drained bucket must stay drained.
+        TokenBucketRateLimiter restarted = new TokenBucketRateLimiter(TimeUnit.MINUTES, 5, () -> -42L);
+        new RateLimiterStatePersister(stateFile, restarted, Duration.ofMinutes(1)).close();
+        assertFalse(restarted.tryAcquire(1));
+
+        // State saved with another limit is ignored.
+        TokenBucketRateLimiter reconfigured = new TokenBucketRateLimiter(TimeUnit.MINUTES, 10, () -> 0L);
+        new RateLimiterStatePersister(stateFile, reconfigured, Duration.ofMinutes(1)).close();
+        assertTrue(reconfigured.tryAcquire(10));
+
+        // So is a torn write.
+        Files.write(stateFile, Arrays.copyOf(Files.readAllBytes(stateFile), 20));
+        TokenBucketRateLimiter fresh = new TokenBucketRateLimiter(TimeUnit.MINUTES, 10, () -> 0L);
+        new RateLimiterStatePersister(stateFile, fresh, Duration.ofMinutes(1)).close();
+        assertTrue(fresh.tryAcquire(10));
+        Files.delete(stateFile);
+    }
+
+    @Test
+    public void testDailyQuotaSurvivesRestart() throws IOException {
+        Path stateFile = Files.createTempFile("crpt-state", ".bin");
+        Files.delete(stateFile);
+        AtomicLong clock = new AtomicLong(TimeUnit.DAYS.toNanos(20_000));
+        List<Window> windows = List.of(Window.fixed(Duration.ofSeconds(1), 5), Window.fixed(Duration.ofDays(1), 5));
+        MultiWindowRateLimiter limiter = new MultiWindowRateLimiter(windows, clock::get);
+        RateLimiterStatePersister persister = new RateLimiterStatePersister(stateFile, limiter, Duration.ofMinutes(1));
+        assertTrue(limiter.tryAcquire(5));
+        persister.close();
+
+        // Restarted at the very start of the day the quota was used in: it must stay used up.
+        MultiWindowRateLimiter restarted = new MultiWindowRateLimiter(windows, clock::get);
+        new RateLimiterStatePersister(stateFile, restarted, Duration.ofMinutes(1)).close();
+        assertEquals(0, restarted.remaining(1));
+        assertFalse(restarted.tryAcquire(1));
+
+        // The next day has the full quota.
+        clock.addAndGet(TimeUnit.DAYS.toNanos(1));
+        MultiWindowRateLimiter nextDay = new MultiWindowRateLimiter(windows, clock::get);
+        new RateLimiterStatePersister(stateFile, nextDay, Duration.ofMinutes(1)).close();
+        assertEquals(5, nextDay.remaining(1));
+        Files.delete(stateFile);
+    }
+
+    @Test
+    public void testReconfigurationAppliesToWaitingCallers() throws Exception {
+        AtomicLong clock = new AtomicLong();
+        ReconfigurableRateLimiter limiter = new ReconfigurableRateLimiter(Duration.ofSeconds(100), 10, 1, clock::get);
+        assertTrue(limiter.tryAcquire(1));
+        CountDownLatch acquired = new CountDownLatch(1);
+        Thread waiter = new Thread(() -> {
+            try {
+                limiter.acquire(1);
+                acquired.countDown();
+            } catch (InterruptedException ignored) {
+            }
+        });
+        waiter.start();
+        while (waiter.getState() != Thread.State.TIMED_WAITING) {
+            Thread.sleep(1);
+        }
+
+        // The waiter owes ten seconds at the old rate and one millisecond at the new one.
+        limiter.reconfigure(Duration.ofSeconds(1), 1000, 1);
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(2), limiter.waitNanos(1));
+        assertFalse(acquired.await(50, TimeUnit.MILLISECONDS));
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(1));
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+
+        Path configFile = Files.createTempFile("crpt-rate", ".properties");
+        try {
+            try (RateLimitConfigWatcher ignored = new RateLimitConfigWatcher(configFile, limiter)) {
+                Files.writeString(configFile, "window=PT1M\nrequestLimit=60\n");
+                long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+                while (limiter.requestLimit() != 60 && System.nanoTime() < deadline) {
+                    Thread.sleep(20);
+                }
+                assertEquals(60, limiter.requestLimit());
+                assertEquals(Duration.ofMinutes(1), limiter.window());
+                assertEquals(1, limiter.burst());
+            }
+
+            // The watcher applies the file when it starts, so an invalid one is checked without waiting.
+            Files.writeString(configFile, "requestLimit=oops\n");
+            new RateLimitConfigWatcher(configFile, limiter).close();
+            assertEquals(60, limiter.requestLimit());
+        } finally {
+            Files.delete(configFile);
+        }
+    }
+
+    @Test
+    public void testConcurrencyLimitFollowsLatency() throws InterruptedException {
+        VegasConcurrencyLimiter limiter = new VegasConcurrencyLimiter(10, 1, 100);
+        long fast = TimeUnit.MILLISECONDS.toNanos(10);
+        for (int i = 0; i < 3; i++) {
+            runRound(limiter, fast);
+        }
+        int grown = limiter.limit();
+        assertTrue(grown > 10, "limit " + grown);
+
+        // Requests are queued at the slow server: the limit shrinks and further callers wait locally.
+        for (int i = 0; i < 2; i++) {
+            runRound(limiter, fast * 3);
+        }
+        int shrunk = limiter.limit();
+        assertTrue(shrunk < grown, "limit " + shrunk);
+        for (int i = 0; i < shrunk; i++) {
+            assertTrue(limiter.tryAcquire(0));
+        }
+        CompletableFuture<Void> waiting = limiter.acquireAsync();
+        assertFalse(waiting.isDone());
+        limiter.release(-1, false);
+        assertTrue(waiting.isDone());
+        for (int i = 0; i < shrunk; i++) {
+            limiter.release(fast, false);
+        }
+
+        assertTrue(limiter.tryAcquire(0));
+        limiter.release(fast, true);
+        assertTrue(limiter.limit() <= shrunk / 2 + 1, "limit " + limiter.limit());
+    }
+
+    private static void runRound(VegasConcurrencyLimiter limiter, long rttNanos) throws InterruptedException {
+        int slots = limiter.limit();
+        for (int i = 0; i < slots; i++) {
+            assertTrue(limiter.tryAcquire(0));
+        }
+        for (int i = 0; i < slots; i++) {
+            limiter.release(rttNanos, false);
+        }
+    }
+
+    @Test
+    public void testCreateDocumentAsyncWaitsOnTimer() throws Exception {
+        CrptApi asyncApi = new CrptApi(new OkHttpClient(), new TokenBucketRateLimiter(TimeUnit.SECONDS, 2),
+                mockWebServer.url("").toString());
+        for (int i = 0; i < 3; i++) {
+            mockWebServer.enqueue(new MockResponse().setBody("{\"value\":\"" + i + "\"}"));
+        }
+        mockWebServer.enqueue(new MockResponse().setResponseCode(400));
+
+        long startedAt = System.nanoTime();
+        List<CompletableFuture<CreateResult>> results = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            results.add(asyncApi.createDocumentAsync(document, signature));
+        }
+        // Nothing blocks the caller, although the third document waits half a second for its permit.
+        assertTrue(System.nanoTime() - startedAt < TimeUnit.MILLISECONDS.toNanos(400));
+
+        for (CompletableFuture<CreateResult> result : results) {
+            assertEquals(200, result.get(5, TimeUnit.SECONDS).getCode());
+        }
+        assertTrue(System.nanoTime() - startedAt >= TimeUnit.MILLISECONDS.toNanos(450));
+
+        ExecutionException failure = assertThrows(ExecutionException.class,
+                () -> asyncApi.createDocumentAsync(document, signature).get(5, TimeUnit.SECONDS));
+        assertTrue(failure.getCause() instanceof IOException);
+        asyncApi.shutdown();
+    }
+
+    @Test
+    public void testAsyncAcquireKeepsFairQueueOrderAndSlots() throws Exception {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        WeightedFairQueue fairQueue = new WeightedFairQueue(new TokenBucketRateLimiter(TimeUnit.SECONDS, 20),
+                Map.of());
+        RateLimiter flow = fairQueue.forFlow("bulk");
+        List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        List<CompletableFuture<Void>> acquired = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            int caller = i;
+            acquired.add(flow.acquireAsync(1, scheduler).thenRun(() -> order.add(caller)));
+        }
+        CompletableFuture.allOf(acquired.toArray(new CompletableFuture[0])).get(5, TimeUnit.SECONDS);
+        for (int i = 0; i < 25; i++) {
+            assertEquals(i, (int) order.get(i));
+        }
+        assertEquals(0, fairQueue.queued());
+
+        VegasConcurrencyLimiter concurrencyLimiter = new VegasConcurrencyLimiter(1, 1, 1);
+        assertTrue(concurrencyLimiter.tryAcquire(0));
+        CompletableFuture<Void> slot = concurrencyLimiter.acquireAsync();
+        assertFalse(slot.isDone());
+        concurrencyLimiter.release(-1, false);
+        assertTrue(slot.isDone());
+        assertFalse(concurrencyLimiter.tryAcquire(0));
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void testDocumentProcessorBoundsUpstreamDemand() throws Exception {
+        int documents = 20;
+        int maxPending = 3;
+        for (int i = 0; i < documents; i++) {
+            mockWebServer.enqueue(new MockResponse().setBody("{}"));
+        }
+        CrptApi streamingApi = new CrptApi(new OkHttpClient(), new TokenBucketRateLimiter(TimeUnit.SECONDS, 100),
+                mockWebServer.url("").toString());
+        DocumentProcessor processor = streamingApi.documentProcessor(maxPending);
+
+        AtomicLong requested = new AtomicLong();
+        AtomicLong received = new AtomicLong();
+        AtomicLong maxAhead = new AtomicLong();
+        AtomicInteger produced = new AtomicInteger();
+        processor.onSubscribe(new Flow.Subscription() {
+            @Override
+            public void request(long n) {
+                maxAhead.accumulateAndGet(requested.addAndGet(n) - received.get(), Math::max);
+                for (long i = 0; i < n; i++) {
+                    int next = produced.incrementAndGet();
+                    if (next <= documents) {
+                        processor.onNext(new SignedDocument(document, signature));
+                    }
+                    if (next == documents) {
+                        processor.onComplete();
+                    }
+                }
+            }
+
+            @Override
+            public void cancel() {
+            }
+        });
+
+        List<SubmissionResult> results = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch completed = new CountDownLatch(1);
+        processor.subscribe(new Flow.Subscriber<>() {
+            private Flow.Subscription subscription;
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                this.subscription = subscription;
+                subscription.request(1);
+            }
+
+            @Override
+            public void onNext(SubmissionResult result) {
+                results.add(result);
+                received.incrementAndGet();
+                subscription.request(1);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+            }
+
+            @Override
+            public void onComplete() {
+                completed.countDown();
+            }
+        });
+
+        assertTrue(completed.await(10, TimeUnit.SECONDS));
+        assertEquals(documents, results.size());
+        assertTrue(results.stream().allMatch(SubmissionResult::isSuccessful));
+        assertTrue(maxAhead.get() <= maxPending, maxAhead.get() + " documents requested ahead");
+        streamingApi.shutdown();
+    }
 
+    @Test
+    public void testCreateDocumentsReportsEachDocument() throws Exception {
+        CrptApi bulkApi = new CrptApi(new OkHttpClient(), new TokenBucketRateLimiter(TimeUnit.SECONDS, 100),
+                mockWebServer.url("").toString());
+        List<Document> documents = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            Document next = new Document();
+            next.setDocId("doc-" + i);
+            documents.add(next);
+        }
+        for (int i = 0; i < 9; i++) {
+            mockWebServer.enqueue(new MockResponse().setBody("{}"));
+        }
+
+        List<SubmissionResult> results = bulkApi.createDocuments(documents, unsigned -> {
+            if (unsigned.getDocId().equals("doc-3")) {
+                throw new IllegalStateException("No key for " + unsigned.getDocId());
+            }
+            return "signature-" + unsigned.getDocId();
+        });
+
+        assertEquals(10, results.size());
+        for (int i = 0; i < 10; i++) {
+            assertSame(documents.get(i), results.get(i).getSubmitted().getDocument());
+            assertEquals(i != 3, results.get(i).isSuccessful());
+        }
+        assertTrue(results.get(3).getError() instanceof IllegalStateException);
+        assertEquals(9, mockWebServer.getRequestCount());
+
+        mockWebServer.enqueue(new MockResponse().setBody("{}"));
+        mockWebServer.enqueue(new MockResponse().setResponseCode(500));
+        List<SubmissionResult> streamed = new ArrayList<>();
+        bulkApi.createDocuments(documents.subList(0, 2), unsigned -> "signature", streamed::add);
+        assertEquals(2, streamed.size());
+        assertEquals(1, streamed.stream().filter(SubmissionResult::isSuccessful).count());
+        bulkApi.shutdown();
+    }
+
+    @Test
+    public void testCreateDocumentsOnExecutor() throws Exception {
+        assertEquals(Runtime.version().feature() >= 21, CrptApi.newVirtualThreadExecutor().isPresent());
+
+        ExecutorService executor = CrptApi.newVirtualThreadExecutor().orElseGet(Executors::newCachedThreadPool);
+        for (int i = 0; i < 3; i++) {
+            mockWebServer.enqueue(new MockResponse().setBody("{\"value\":\"ok\"}"));
+        }
+        List<SubmissionResult> results = crptApi.createDocuments(List.of(document, document, document),
+                unsigned -> signature, executor);
+        executor.shutdown();
+
+        assertEquals(3, results.size());
+        for (SubmissionResult result : results) {
+            assertEquals("{\"value\":\"ok\"}", result.getResult().getBody());
+        }
+        verify(mockRateLimiter, times(3)).acquire(1);
+    }
+
+    @Test
+    public void testShutdownCancelsQueuedCallers() throws Exception {
+        CrptApi closingApi = new CrptApi(new OkHttpClient(), new TokenBucketRateLimiter(TimeUnit.MINUTES, 1),
+                mockWebServer.url("").toString());
+        mockWebServer.enqueue(new MockResponse().setBody("created"));
+        closingApi.createDocument(document, signature);
+
+        // Both wait a minute for the next permit.
+        AtomicReference<IOException> blockedFailure = new AtomicReference<>();
+        Thread blocked = new Thread(() -> {
+            try {
+                closingApi.createDocument(document, signature);
+            } catch (IOException e) {
+                blockedFailure.set(e);
+            }
+        });
+        blocked.start();
+        CompletableFuture<CreateResult> async = closingApi.createDocumentAsync(document, signature);
+        while (blocked.getState() != Thread.State.TIMED_WAITING) {
+            Thread.sleep(10);
+        }
+
+        ShutdownReport report = closingApi.shutdown(Duration.ofMillis(100));
+        assertEquals(new ShutdownReport(0, 2, 0), report);
+
+        blocked.join(5000);
+        assertTrue(blockedFailure.get() != null);
+        ExecutionException asyncFailure = assertThrows(ExecutionException.class,
+                () -> async.get(5, TimeUnit.SECONDS));
+        assertTrue(asyncFailure.getCause() instanceof IOException);
+        assertThrows(IOException.class, () -> closingApi.createDocument(document, signature));
+        assertEquals(1, mockWebServer.getRequestCount());
+    }
+
+    @Test
+    public void testShutdownDoesNotWaitForFailedAsyncSubmission() {
+        CrptApi failingApi = new CrptApi(new OkHttpClient(), RateLimiter.UNLIMITED, document -> {
+            throw new IllegalStateException("No cost for document " + document.getDocId());
+        }, RateLimiter.UNLIMITED, mockWebServer.url("").toString());
+
+        CompletableFuture<CreateResult> async = failingApi.createDocumentAsync(document, signature);
+        ExecutionException failure = assertThrows(ExecutionException.class, () -> async.get(5, TimeUnit.SECONDS));
+        assertTrue(failure.getCause() instanceof IllegalStateException);
+
+        long startedAt = System.nanoTime();
+        assertEquals(new ShutdownReport(0, 0, 0), failingApi.shutdown(Duration.ofSeconds(30)));
+        assertTrue(System.nanoTime() - startedAt < TimeUnit.SECONDS.toNanos(5));
+        assertEquals(0, mockWebServer.getRequestCount());
+    }
+
+    @Test
+    public void testShutdownHandsOverFairQueueTurn() throws Exception {
+        GcraRateLimiter delegate = new GcraRateLimiter(TimeUnit.SECONDS, 2, 1);
+        WeightedFairQueue fairQueue = new WeightedFairQueue(delegate, Map.of());
+        CrptApi closingApi = new CrptApi(new OkHttpClient(), fairQueue.forFlow("LP_INTRODUCE_GOODS"),
+                mockWebServer.url("").toString());
+        assertTrue(delegate.tryAcquire(1));
+
+        // Holds the queue's turn for half a second, while the client is shut down.
+        CompletableFuture<CreateResult> async = closingApi.createDocumentAsync(document, signature);
+        assertEquals(new ShutdownReport(0, 1, 0), closingApi.shutdown(Duration.ZERO));
+        assertThrows(ExecutionException.class, () -> async.get(5, TimeUnit.SECONDS));
+
+        // The fair queue belongs to the caller and keeps serving other clients.
+        assertTrue(fairQueue.forFlow("LP_SHIP_GOODS").tryAcquire(1, TimeUnit.SECONDS.toNanos(5)));
+        assertEquals(0, fairQueue.queued());
+        assertEquals(0, mockWebServer.getRequestCount());
+    }
+
+    @Test
+    public void testDocumentWriterIsSharedAndConfigurable() throws IOException {
+        byte[] expected = new ObjectMapper().writeValueAsBytes(document);
+        assertArrayEquals(expected, crptApi.toJson(document));
+        assertArrayEquals(expected, crptApi.toJson(document));
+
+        CrptApi indentingApi = new CrptApi(RateLimiter.UNLIMITED,
+                CrptApi.documentWriter(new ObjectMapper()).with(SerializationFeature.INDENT_OUTPUT));
+        String indented = new String(indentingApi.toJson(document), StandardCharsets.UTF_8);
+        assertTrue(indented.contains("\n"));
+        assertEquals(new ObjectMapper().readTree(expected), new ObjectMapper().readTree(indented));
+        indentingApi.shutdown();
+    }
+
+    @Test
+    public void testStreamingBodyMatchesBufferedJson() throws IOException, InterruptedException {
+        List<Product> products = new ArrayList<>();
+        for (int i = 0; i < 1500; i++) {
+            Product product = new Product();
+            product.setUitCode("uit-" + i);
+            product.setTnvedCode("6403990000");
+            products.add(product);
+        }
+        document.setProducts(products);
+        byte[] expected = new ObjectMapper().writeValueAsBytes(document);
+
+        for (DocumentSerializer serializer : List.of(DocumentSerializer.DEFAULT,
+                DocumentSerializer.of(CrptApi.documentWriter(new ObjectMapper())))) {
+            DocumentRequestBody body = new DocumentRequestBody(serializer, document, true);
+            assertEquals(expected.length, body.contentLength());
+            Buffer sink = new Buffer();
+            body.writeTo(sink);
+            assertArrayEquals(expected, sink.readByteArray());
+            // OkHttp writes the body again when it retries the request.
+            body.writeTo(sink);
+            assertArrayEquals(expected, sink.readByteArray());
+
+            DocumentRequestBody unmeasured = new DocumentRequestBody(serializer, document, false);
+            assertEquals(-1, unmeasured.contentLength());
+            unmeasured.writeTo(sink);
+            assertArrayEquals(expected, sink.readByteArray());
+        }
+
+        // Without a byte budget the length is not needed, so the document is serialized once and sent chunked.
+        mockWebServer.enqueue(new MockResponse());
+        crptApi.createDocument(document, signature);
+        RecordedRequest request = mockWebServer.takeRequest();
+        assertEquals("chunked", request.getHeader("Transfer-Encoding"));
+        assertArrayEquals(expected, request.getBody().readByteArray());
+    }
+
+    @Test
+    public void testGeneratedJsonMatchesGoldenFile() throws IOException {
+        byte[] golden;
+        try (InputStream in = getClass().getResourceAsStream("document-golden.json")) {
+            golden = in.readAllBytes();
+        }
+        Document tricky = goldenDocument();
+        assertArrayEquals(golden, new ObjectMapper().writeValueAsBytes(tricky));
+        assertArrayEquals(golden, DocumentJsonWriter.toBytes(tricky));
+        ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+        DocumentJsonWriter.write(tricky, streamed);
+        assertArrayEquals(golden, streamed.toByteArray());
+
+        // Strings longer than the buffer, and documents with every field missing.
+        tricky.setRegNumber("й\u0001€".repeat(5000) + "x".repeat(9000));
+        assertArrayEquals(new ObjectMapper().writeValueAsBytes(tricky), DocumentJsonWriter.toBytes(tricky));
+        streamed.reset();
+        DocumentJsonWriter.write(tricky, streamed);
+        assertArrayEquals(new ObjectMapper().writeValueAsBytes(tricky), streamed.toByteArray());
+        assertArrayEquals(new ObjectMapper().writeValueAsBytes(new Document()), DocumentJsonWriter.toBytes(new Document()));
+        assertArrayEquals(new ObjectMapper().writeValueAsBytes(document), DocumentJsonWriter.toBytes(document));
+    }
+
+    @Test
+    public void testParallelSerializerKeepsChunkOrder() throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        ParallelDocumentSerializer serializer = new ParallelDocumentSerializer(pool, 7);
+        Document large = goldenDocument();
+        List<Product> products = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            Product product = new Product();
+            product.setUitCode("uit-" + i);
+            products.add(i % 10 == 9 ? null : product);
+        }
+
+        // More chunks than are serialized ahead, a partial last chunk, exactly one chunk, and one product over it.
+        for (int size : new int[]{100, 100, 7, 8}) {
+            large.setProducts(products.subList(0, size));
+            byte[] expected = new ObjectMapper().writeValueAsBytes(large);
+            assertArrayEquals(expected, serializer.toBytes(large));
+            ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+            serializer.write(large, streamed);
+            assertArrayEquals(expected, streamed.toByteArray());
+        }
+        pool.shutdown();
+    }
+
+    @Test
+    public void testParallelSerializerReturnsBuffersWhenChunkFails() throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(2);
+        ParallelDocumentSerializer serializer = new ParallelDocumentSerializer(pool, 7);
+        Document large = goldenDocument();
+        List<Product> products = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            products.add(new Product());
+        }
+        large.setProducts(products);
+        serializer.write(large, new ByteArrayOutputStream());
+        int pooled = serializer.pooledBuffers();
+
+        large.setProducts(new AbstractList<>() {
+            @Override
+            public Product get(int index) {
+                if (index == 30) {
+                    throw new IllegalStateException("Product " + index + " is unreadable");
+                }
+                return products.get(index);
+            }
+
+            @Override
+            public int size() {
+                return products.size();
+            }
+        });
+        IOException failure = assertThrows(IOException.class,
+                () -> serializer.write(large, new ByteArrayOutputStream()));
+        assertTrue(failure.getCause() instanceof IllegalStateException);
+        assertTrue(serializer.pooledBuffers() >= pooled);
+        pool.shutdown();
+    }
+
+    @Test
+    public void testCompactProductListSerializesLikePlainList() throws IOException {
+        List<Product> plain = new ArrayList<>();
+        for (int i = 0; i < 1_000; i++) {
+            Product product = new Product();
+            product.setCertificateDocument(i % 3 == 0 ? "CONFORMITY_DECLARATION" : "CONFORMITY_CERTIFICATE");
+            product.setCertificateDocumentDate(i % 50 == 0 ? null : LocalDate.of(2024, 1, 1).plusDays(i % 7).toString());
+            product.setCertificateDocumentNumber("RU C-RU.AB12.B.00" + (i % 300) + "/24");
+            product.setOwnerInn("7700000000");
+            product.setProducerInn(i % 100 == 0 ? null : "7800000000");
+            product.setProductionDate("1970-01-01");
+            product.setTnvedCode("6403");
+            product.setUitCode(i == 500 ? "uit \"😀\" №" + i : "010460043993125621JgXJ5.T" + i);
+            product.setUituCode(i % 2 == 0 ? null : i == 1 ? "" : "00046004399312" + i);
+            plain.add(product);
+        }
+        CompactProductList compact = new CompactProductList(plain);
+        assertEquals(plain, compact);
+
+        Document document = goldenDocument();
+        document.setProducts(plain);
+        byte[] expected = new ObjectMapper().writeValueAsBytes(document);
+        document.setProducts(compact);
+        assertArrayEquals(expected, DocumentSerializer.DEFAULT.toBytes(document));
+        assertArrayEquals(expected, new ObjectMapper().writeValueAsBytes(document));
+        ForkJoinPool pool = new ForkJoinPool(4);
+        assertArrayEquals(expected, new ParallelDocumentSerializer(pool, 7).toBytes(document));
+        pool.shutdown();
+
+        Product invalid = new Product();
+        invalid.setProductionDate("2024-1-5");
+        assertThrows(IllegalArgumentException.class, () -> compact.add(invalid));
+        assertThrows(NullPointerException.class, () -> compact.add(null));
+        assertEquals(plain.size(), compact.size());
+    }
+
+    /**
+     * The document of document-golden.json, which holds Jackson's output for it.
+     */
+    static Document goldenDocument() {
+        Document golden = new Document();
+        Description description = new Description();
+        description.setParticipantInn("7700000000");
+        golden.setDescription(description);
+        golden.setDocId("doc \"42\" \\ a/b");
+        golden.setDocStatus("line1\nline2\r\n\ttab\b\f");
+        golden.setDocType("LP_INTRODUCE_GOODS");
+        golden.setImportRequest(true);
+        golden.setOwnerInn("\u0000\u001f\u007f");
+        golden.setParticipantInn("ООО «Иванов и К°» №1");
+        golden.setProducerInn("emoji 😀, lone \uD83D");
+        golden.setProductionDate("2024-03-01");
+        golden.setRegNumber("€ ¢ \u2028");
+
+        Product product = new Product();
+        product.setCertificateDocument("CONFORMITY_CERTIFICATE");
+        product.setCertificateDocumentDate("2024-01-15");
+        product.setCertificateDocumentNumber("RU C-RU.AB12.B.00123/24");
+        product.setOwnerInn("7700000000");
+        product.setProducerInn("7800000000");
+        product.setProductionDate("2024-03-01");
+        product.setTnvedCode("6403990000");
+        product.setUitCode("010460000000000021<>&'");
+        product.setUituCode("");
+        golden.setProducts(Arrays.asList(product, new Product(), null));
+        return golden;
+    }
+}